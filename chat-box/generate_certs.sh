@@ -2,13 +2,18 @@
 
 # This script can be run from anywhere.
 # It will determine its own location and place certs in the correct relative path.
+# The certs (including the CA private key) are written next to the script, outside
+# src/main/resources, so they never end up in git or in the jar. Point the server and
+# client at another directory with -Dchat.tls.dir if you keep them elsewhere.
 SCRIPT_DIR=$(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)
 
 # A script to generate certificates for the gRPC chat-box example.
 
-CERT_DIR="$SCRIPT_DIR/src/main/resources/certs"
+CERT_DIR="$SCRIPT_DIR/certs"
 SERVER_CN="localhost"
 CLIENT_CN="my-client"
+# Cluster nodes connect to each other with this identity; see chat.cluster.peer.names
+NODE_CN="chat-node"
 SERVER_PASS="server_password"
 CLIENT_PASS="client_password"
 
@@ -49,6 +54,13 @@ openssl req -new -key "$CERT_DIR/client.key" -out "$CERT_DIR/client.csr" -subj "
 openssl x509 -req -in "$CERT_DIR/client.csr" -CA "$CERT_DIR/ca.crt" -CAkey "$CERT_DIR/ca.key" -out "$CERT_DIR/client.crt" -days 365
 echo "Client certificate generated."
 
+# --- Cluster Node Certificate ---
+echo "Generating cluster node certificate for CN=$NODE_CN..."
+openssl genpkey -algorithm RSA -out "$CERT_DIR/node.key"
+openssl req -new -key "$CERT_DIR/node.key" -out "$CERT_DIR/node.csr" -subj "/CN=${NODE_CN}"
+openssl x509 -req -in "$CERT_DIR/node.csr" -CA "$CERT_DIR/ca.crt" -CAkey "$CERT_DIR/ca.key" -out "$CERT_DIR/node.crt" -days 365
+echo "Cluster node certificate generated."
+
 # --- PKCS12 Bundles ---
 echo "Creating PKCS12 bundles..."
 # Server
@@ -64,4 +76,4 @@ echo "Cleaning up intermediate files..."
 rm "$CERT_DIR/server_ext.cnf"
 rm "$CERT_DIR"/*.csr
 rm "$CERT_DIR"/*.srl
-echo "Certificate generation complete! You can find the .p12 files in $CERT_DIR" 
\ No newline at end of file
+echo "Certificate generation complete! You can find the certificates in $CERT_DIR" 
\ No newline at end of file
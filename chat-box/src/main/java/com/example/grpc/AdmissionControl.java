@@ -0,0 +1,287 @@
+package com.example.grpc;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * 服务端的准入控制，在进程被压垮之前拒绝新的工作，被拒绝的调用或流以 RESOURCE_EXHAUSTED 结束：
+ * <ul>
+ *   <li>每个 user_id 一个令牌桶，限制消息速率；user_id 由客户端填写，桶的数量有上限</li>
+ *   <li>全局的在途消息数和字节数预算：已经从客户端收下、还没处理完的入站消息</li>
+ *   <li>堆压力：GC 之后老年代的占用超过阈值时，拒绝新的调用和新的消息，直到当前占用降到更低的恢复阈值以下</li>
+ * </ul>
+ * 每个连接的并发流数、连接的空闲和存活时间由 HTTP/2 层限制，见 {@link ChatServer}。
+ */
+final class AdmissionControl {
+    private static final Logger logger = Logger.getLogger(AdmissionControl.class.getName());
+    private static final long CHECK_INTERVAL_MILLIS = 500;
+    // 桶满时清理空闲桶的最小间隔，避免每个新用户都扫描一遍
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double userRate;
+    private final double userBurst;
+    private final int maxTrackedUsers;
+    // 空闲这么久的令牌桶已经回满，和新建的桶没有区别，可以直接丢掉
+    private final long idleBucketNanos;
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final long maxInFlightMessages;
+    private final long maxInFlightBytes;
+    private final double heapShedFraction;
+    private final double heapRecoverFraction;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong inFlightMessages = new AtomicLong();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+    private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+    private final NotificationListener gcListener = this::onGc;
+    private final LongAdder rejectedCalls = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder tooManyUsers = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder heapShed = new LongAdder();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-admission");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean heapPressure;
+    // 最近一次 GC 之后的老年代占用
+    private volatile double heapOccupancy;
+
+    AdmissionControl(ChatServerConfig config) {
+        this.userRate = config.userRatePerSecond;
+        this.userBurst = Math.max(1, config.userBurst);
+        this.maxTrackedUsers = Math.max(1, config.maxTrackedUsers);
+        this.idleBucketNanos = userRate > 0 ? (long) (userBurst / userRate * 1e9) : 0;
+        this.maxInFlightMessages = config.maxInFlightMessages;
+        this.maxInFlightBytes = config.maxInFlightBytes;
+        this.heapShedFraction = config.heapShedFraction;
+        // 恢复阈值不低于拒绝阈值时没有回差，压力在阈值附近会来回切换
+        this.heapRecoverFraction = Math.min(config.heapRecoverFraction, config.heapShedFraction);
+    }
+
+    void start() {
+        if (heapShedFraction > 0 && heapShedFraction < 1) {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                // 只有老年代（或 ZGC 这类不分代的整个堆）支持占用阈值，新生代里大多是很快会被回收的垃圾
+                if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()) {
+                    heapPools.add(pool);
+                }
+            }
+            // 每次 GC（包括新生代和 G1 的混合回收）结束时检查 GC 后的占用。G1 的老年代只在 Full GC 时
+            // 更新 getCollectionUsage()，所以不能只靠它和 CollectionUsageThreshold
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (collector instanceof NotificationEmitter) {
+                    NotificationEmitter emitter = (NotificationEmitter) collector;
+                    emitter.addNotificationListener(gcListener, null, null);
+                    gcEmitters.add(emitter);
+                }
+            }
+            scheduler.scheduleWithFixedDelay(this::pollHeap, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (userRate > 0) {
+            scheduler.scheduleWithFixedDelay(this::evictIdleBuckets, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+        for (NotificationEmitter emitter : gcEmitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (Exception e) {
+                // 监听器已经不在了
+            }
+        }
+    }
+
+    /**
+     * 拦截新的调用：堆压力过大时直接以 RESOURCE_EXHAUSTED 结束，不创建流和订阅。
+     */
+    ServerInterceptor interceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                if (heapPressure) {
+                    rejectedCalls.increment();
+                    call.close(Status.RESOURCE_EXHAUSTED.withDescription("server overloaded: heap pressure"), new Metadata());
+                    return new ServerCall.Listener<ReqT>() { };
+                }
+                return next.startCall(call, headers);
+            }
+        };
+    }
+
+    /**
+     * 收下一个入站帧之前调用，{@code messages} 是帧里的聊天消息数（批量帧按批内条数算）。
+     * 通过时占用在途预算，处理完后必须以同样的参数调用 {@link #release(int, int)}；拒绝时返回原因，不占用预算。
+     */
+    Status admitMessage(int messages, int bytes) {
+        if (heapPressure) {
+            heapShed.increment();
+            return Status.RESOURCE_EXHAUSTED.withDescription("server overloaded: heap pressure");
+        }
+        long count = inFlightMessages.addAndGet(messages);
+        long total = inFlightBytes.addAndGet(bytes);
+        if (count > maxInFlightMessages || total > maxInFlightBytes) {
+            release(messages, bytes);
+            overBudget.increment();
+            return Status.RESOURCE_EXHAUSTED.withDescription("server overloaded: too many in-flight messages");
+        }
+        return null;
+    }
+
+    void release(int messages, int bytes) {
+        inFlightMessages.addAndGet(-messages);
+        inFlightBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * 按用户限速，没有令牌时返回拒绝原因。
+     */
+    Status admitUser(String userId) {
+        if (userRate <= 0) {
+            return null;
+        }
+        TokenBucket bucket = buckets.get(userId);
+        if (bucket == null) {
+            // 不断换 user_id 的客户端不能让这张表无限增长；并发插入时可能略微超过上限
+            if (buckets.size() >= maxTrackedUsers && !sweepIdleBuckets()) {
+                tooManyUsers.increment();
+                return Status.RESOURCE_EXHAUSTED.withDescription("too many active users");
+            }
+            bucket = buckets.computeIfAbsent(userId, key -> new TokenBucket(userBurst));
+        }
+        if (bucket.tryAcquire(userRate, userBurst)) {
+            return null;
+        }
+        rateLimited.increment();
+        return Status.RESOURCE_EXHAUSTED.withDescription("rate limit exceeded for user " + userId);
+    }
+
+    String toJson() {
+        return String.format(Locale.ROOT, "{\"heapPressure\": %b, \"heapOccupancy\": %.3f, \"inFlightMessages\": %d,"
+                        + " \"inFlightBytes\": %d, \"trackedUsers\": %d, \"rejectedCalls\": %d, \"rateLimited\": %d,"
+                        + " \"tooManyUsers\": %d, \"overBudget\": %d, \"heapShed\": %d}",
+                heapPressure, heapOccupancy, inFlightMessages.get(), inFlightBytes.get(), buckets.size(),
+                rejectedCalls.sum(), rateLimited.sum(), tooManyUsers.sum(), overBudget.sum(), heapShed.sum());
+    }
+
+    private void onGc(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        Map<String, MemoryUsage> after = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                .getGcInfo().getMemoryUsageAfterGc();
+        double occupancy = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            MemoryUsage usage = after.get(pool.getName());
+            if (usage != null) {
+                occupancy = Math.max(occupancy, (double) usage.getUsed() / maxOf(pool));
+            }
+        }
+        heapOccupancy = occupancy;
+        // 开始拒绝看 GC 之后的占用，也就是存活数据的大小：瞬时占用里包含还没被回收的垃圾，会误判
+        if (occupancy >= heapShedFraction) {
+            setHeapPressure(true, occupancy);
+        }
+    }
+
+    // 恢复看当前占用：拒绝之后分配变少，GC 可能迟迟不来，GC 后的占用会一直停在开始拒绝时的值。
+    // 当前占用只有回收之后才会下降，降到恢复阈值以下说明确实腾出了空间；和拒绝阈值之间的回差避免来回切换
+    private void pollHeap() {
+        if (!heapPressure) {
+            return;
+        }
+        double occupancy = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            occupancy = Math.max(occupancy, (double) pool.getUsage().getUsed() / maxOf(pool));
+        }
+        if (occupancy < heapRecoverFraction) {
+            setHeapPressure(false, occupancy);
+        }
+    }
+
+    private synchronized void setHeapPressure(boolean pressure, double occupancy) {
+        if (pressure == heapPressure) {
+            return;
+        }
+        heapPressure = pressure;
+        if (pressure) {
+            logger.warning(String.format(Locale.ROOT, "堆内存压力过大（GC 后老年代占用 %.1f%%），开始拒绝新的调用和消息", occupancy * 100));
+        } else {
+            logger.info(String.format(Locale.ROOT, "堆内存压力解除（老年代当前占用 %.1f%%），恢复接受调用和消息", occupancy * 100));
+        }
+    }
+
+    private static long maxOf(MemoryPoolMXBean pool) {
+        long max = pool.getUsage().getMax();
+        return max > 0 ? max : Runtime.getRuntime().maxMemory();
+    }
+
+    private void evictIdleBuckets() {
+        long now = System.nanoTime();
+        lastSweep.set(now);
+        buckets.values().removeIf(bucket -> bucket.idleSince(now) >= idleBucketNanos);
+    }
+
+    // 表满时清理空闲的桶（距离上次清理至少 SWEEP_INTERVAL_NANOS），返回现在是否有位置
+    private boolean sweepIdleBuckets() {
+        long last = lastSweep.get();
+        if (System.nanoTime() - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, System.nanoTime())) {
+            evictIdleBuckets();
+        }
+        return buckets.size() < maxTrackedUsers;
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        TokenBucket(double tokens) {
+            this.tokens = tokens;
+        }
+
+        synchronized boolean tryAcquire(double rate, double burst) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized long idleSince(long now) {
+            return now - lastRefill;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package com.example.grpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * 附件服务：分块接收附件并写到磁盘，完成后在聊天室里发一条附件通知；下载时按流控从文件映射区分块发出。
+ *
+ * <p>上传的块用 {@link PooledMessage} 解析，数据直接从 Netty 的池化缓冲区写进文件，不经过堆上的数组。
+ * 每个上传流只在写完一块之后才向传输层要下一块，内存里最多只有一块，其余的积压留在 HTTP/2 的流控窗口里；
+ * 文件读写在单独的小线程池上进行，不占用事件循环和聊天消息的处理线程。
+ * 附件以内容的 SHA-256 命名，相同的内容只保存一份。集群模式下附件只保存在接收上传的节点上。
+ */
+final class AttachmentServiceImpl implements BindableService {
+    private static final Logger logger = Logger.getLogger(AttachmentServiceImpl.class.getName());
+    static final int CHUNK_BYTES = 64 * 1024;
+    private static final Pattern ID = Pattern.compile("[0-9a-f]{64}");
+
+    private final ChatServiceImpl chat;
+    private final Path dir;
+    private final Path spoolDir;
+    private final long maxBytes;
+    private final ExecutorService ioPool;
+
+    AttachmentServiceImpl(ChatServerConfig config, ChatServiceImpl chat) throws IOException {
+        this.chat = chat;
+        this.dir = Paths.get(config.attachmentDir);
+        this.spoolDir = dir.resolve("spool");
+        this.maxBytes = config.attachmentMaxBytes;
+        Files.createDirectories(spoolDir);
+        // 上次退出时没有完成的上传
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir)) {
+            for (Path file : leftovers) {
+                Files.deleteIfExists(file);
+            }
+        }
+        this.ioPool = Executors.newFixedThreadPool(config.attachmentIoThreads, new DefaultThreadFactory("chat-attachment-io", true));
+    }
+
+    void close() {
+        ioPool.shutdown();
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        MethodDescriptor<PooledMessage<AttachmentChunk>, Attachment> uploadMethod = AttachmentServiceGrpc.getUploadMethod()
+                .toBuilder(PooledMessage.marshaller(AttachmentChunk.getDefaultInstance()),
+                        ProtoUtils.marshaller(Attachment.getDefaultInstance()))
+                .build();
+        MethodDescriptor<AttachmentRequest, EncodedMessage> downloadMethod = AttachmentServiceGrpc.getDownloadMethod()
+                .toBuilder(ProtoUtils.marshaller(AttachmentRequest.getDefaultInstance()), EncodedMessage.MARSHALLER)
+                .build();
+        return ServerServiceDefinition.builder(AttachmentServiceGrpc.SERVICE_NAME)
+                .addMethod(uploadMethod, ServerCalls.asyncClientStreamingCall(
+                        response -> new Upload((ServerCallStreamObserver<Attachment>) response)))
+                .addMethod(downloadMethod, ServerCalls.asyncServerStreamingCall(this::download))
+                .build();
+    }
+
+    private void download(AttachmentRequest request, StreamObserver<EncodedMessage> responseObserver) {
+        ServerCallStreamObserver<EncodedMessage> call = (ServerCallStreamObserver<EncodedMessage>) responseObserver;
+        if (!ID.matcher(request.getId()).matches()) {
+            call.onError(Status.INVALID_ARGUMENT.withDescription("invalid attachment id").asRuntimeException());
+            return;
+        }
+        MappedByteBuffer content;
+        try (FileChannel file = FileChannel.open(dir.resolve(request.getId()), StandardOpenOption.READ)) {
+            content = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        } catch (NoSuchFileException e) {
+            call.onError(Status.NOT_FOUND.withDescription("attachment " + request.getId() + " not found").asRuntimeException());
+            return;
+        } catch (IOException e) {
+            call.onError(Status.INTERNAL.withDescription("读取附件失败: " + e.getMessage()).asRuntimeException());
+            return;
+        }
+        DownloadStream stream = new DownloadStream(call, content, hexToBytes(request.getId()));
+        // 读映射区可能缺页阻塞，放在 I/O 线程上
+        SerializingExecutor executor = new SerializingExecutor(ioPool);
+        call.setOnReadyHandler(() -> executor.execute(stream::pump));
+        executor.execute(stream::pump);
+    }
+
+    /**
+     * 一个上传流。回调都转到流自己的 {@link SerializingExecutor} 上按顺序执行。
+     */
+    private final class Upload implements StreamObserver<PooledMessage<AttachmentChunk>> {
+        private final ServerCallStreamObserver<Attachment> call;
+        private final SerializingExecutor executor = new SerializingExecutor(ioPool);
+        private final MessageDigest digest = sha256();
+        private Path spool;
+        private FileChannel file;
+        private String userId;
+        private String room;
+        private String name;
+        private long size;
+        private ByteString expectedHash = ByteString.EMPTY;
+        private boolean failed;
+
+        Upload(ServerCallStreamObserver<Attachment> call) {
+            this.call = call;
+            call.disableAutoRequest();
+            call.request(1);
+            call.setOnCancelHandler(() -> executor.execute(this::discard));
+        }
+
+        @Override
+        public void onNext(PooledMessage<AttachmentChunk> chunk) {
+            executor.execute(() -> {
+                try (chunk) {
+                    if (failed || call.isCancelled()) {
+                        return;
+                    }
+                    write(chunk.message());
+                    call.request(1);
+                } catch (IOException e) {
+                    fail(Status.INTERNAL.withDescription("保存附件失败: " + e.getMessage()));
+                } catch (StatusRuntimeException e) {
+                    fail(e.getStatus());
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            executor.execute(this::discard);
+        }
+
+        @Override
+        public void onCompleted() {
+            executor.execute(() -> {
+                if (failed) {
+                    return;
+                }
+                try {
+                    call.onNext(finish());
+                    call.onCompleted();
+                } catch (IOException e) {
+                    fail(Status.INTERNAL.withDescription("保存附件失败: " + e.getMessage()));
+                } catch (StatusRuntimeException e) {
+                    fail(e.getStatus());
+                }
+            });
+        }
+
+        private void write(AttachmentChunk chunk) throws IOException {
+            if (file == null) {
+                if (chunk.getName().isEmpty()) {
+                    throw Status.INVALID_ARGUMENT.withDescription("first chunk must carry the attachment name").asRuntimeException();
+                }
+                userId = chunk.getUserId();
+                room = chunk.getRoom();
+                name = chunk.getName();
+                spool = spoolDir.resolve(UUID.randomUUID() + ".part");
+                file = FileChannel.open(spool, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            ByteString data = chunk.getData();
+            size += data.size();
+            if (size > maxBytes) {
+                throw Status.RESOURCE_EXHAUSTED.withDescription("attachment larger than " + maxBytes + " bytes").asRuntimeException();
+            }
+            // 解析时开启了 aliasing，这里的缓冲区就是传输层收到数据的那块池化内存
+            for (ByteBuffer buffer : data.asReadOnlyByteBufferList()) {
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+            }
+            if (!chunk.getSha256().isEmpty()) {
+                expectedHash = chunk.getSha256();
+            }
+        }
+
+        private Attachment finish() throws IOException {
+            if (file == null) {
+                throw Status.INVALID_ARGUMENT.withDescription("empty upload").asRuntimeException();
+            }
+            byte[] hash = digest.digest();
+            if (!expectedHash.equals(ByteString.copyFrom(hash))) {
+                throw Status.DATA_LOSS.withDescription("sha256 mismatch").asRuntimeException();
+            }
+            file.force(false);
+            file.close();
+            file = null;
+            String id = bytesToHex(hash);
+            try {
+                Files.move(spool, dir.resolve(id), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                // 相同的内容已经有人上传过
+                Files.deleteIfExists(spool);
+            }
+            spool = null;
+            Attachment attachment = Attachment.newBuilder().setId(id).setName(name).setSize(size).build();
+            logger.info("Attachment " + name + " (" + size + " bytes) from " + userId + " stored as " + id);
+            chat.post(ChatMessage.newBuilder()
+                    .setUserId(userId)
+                    .setRoom(room)
+                    .setContent(name)
+                    .setTimestamp(System.currentTimeMillis())
+                    .setAttachment(attachment)
+                    .build());
+            return attachment;
+        }
+
+        private void fail(Status status) {
+            failed = true;
+            discard();
+            call.onError(status.asRuntimeException());
+        }
+
+        private void discard() {
+            try {
+                if (file != null) {
+                    file.close();
+                    file = null;
+                }
+                if (spool != null) {
+                    Files.deleteIfExists(spool);
+                    spool = null;
+                }
+            } catch (IOException e) {
+                logger.warning("清理未完成的附件失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 按流控把附件分块发出。每块的 data 字段直接引用文件映射区，最后一块再带上内容的哈希。
+     */
+    private static final class DownloadStream {
+        private final ServerCallStreamObserver<EncodedMessage> call;
+        private final MappedByteBuffer content;
+        private final byte[] sha256;
+        private final ByteBuffer[] parts = new ByteBuffer[3];
+        private boolean done;
+
+        DownloadStream(ServerCallStreamObserver<EncodedMessage> call, MappedByteBuffer content, byte[] sha256) {
+            this.call = call;
+            this.content = content;
+            this.sha256 = sha256;
+        }
+
+        void pump() {
+            while (!done && call.isReady() && !call.isCancelled()) {
+                int length = Math.min(CHUNK_BYTES, content.remaining());
+                ByteBuffer data = content.slice();
+                data.limit(length);
+                content.position(content.position() + length);
+                int count = 0;
+                parts[count++] = lengthDelimited(AttachmentChunk.DATA_FIELD_NUMBER, length, null);
+                parts[count++] = data;
+                if (!content.hasRemaining()) {
+                    parts[count++] = lengthDelimited(AttachmentChunk.SHA256_FIELD_NUMBER, sha256.length, sha256);
+                    done = true;
+                }
+                call.onNext(EncodedMessage.ofSegments(parts, count));
+                if (done) {
+                    call.onCompleted();
+                }
+            }
+        }
+
+        // 字段的 tag 和长度，value 不为空时把内容也写进去
+        private static ByteBuffer lengthDelimited(int field, int length, byte[] value) {
+            int headerSize = CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(length);
+            byte[] out = new byte[headerSize + (value != null ? value.length : 0)];
+            CodedOutputStream output = CodedOutputStream.newInstance(out);
+            try {
+                output.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeUInt32NoTag(length);
+                if (value != null) {
+                    output.writeRawBytes(value);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("编码附件块失败", e);
+            }
+            return ByteBuffer.wrap(out);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String bytesToHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
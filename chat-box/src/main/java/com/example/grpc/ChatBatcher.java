@@ -0,0 +1,83 @@
+package com.example.grpc;
+
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端发送合并器：把短时间内的多条 ChatMessage 攒成一个 ChatBatch 再发出。
+ * 攒满 maxBatchSize 条立即发送，否则从第一条消息入队起最多等待 linger 时间。
+ */
+public class ChatBatcher {
+    private final StreamObserver<ChatBatch> target;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final ScheduledExecutorService scheduler;
+    private ChatBatch.Builder pending = ChatBatch.newBuilder();
+    private ScheduledFuture<?> lingerTimer;
+    private boolean closed;
+
+    public ChatBatcher(StreamObserver<ChatBatch> target, int maxBatchSize, long linger, TimeUnit unit,
+                       ScheduledExecutorService scheduler) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        }
+        this.target = target;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = unit.toNanos(linger);
+        this.scheduler = scheduler;
+    }
+
+    public synchronized void send(ChatMessage message) {
+        if (closed) {
+            throw new IllegalStateException("ChatBatcher已关闭");
+        }
+        pending.addMessages(message);
+        if (pending.getMessagesCount() >= maxBatchSize || lingerNanos <= 0) {
+            flush();
+        } else if (lingerTimer == null) {
+            lingerTimer = scheduler.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** 立即发送已经攒下的消息，流已经结束时什么也不做 */
+    public synchronized void flush() {
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+        // cancel(false) 停不住已经在等锁的 linger 刷新，它进来时流可能已经被 abort 结束了
+        if (closed || pending.getMessagesCount() == 0) {
+            return;
+        }
+        ChatBatch batch = pending.build();
+        pending = ChatBatch.newBuilder();
+        target.onNext(batch);
+    }
+
+    /** 发送剩余消息并结束流 */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        target.onCompleted();
+    }
+
+    /** 丢弃攒下的消息并以错误结束流 */
+    public synchronized void abort(Throwable t) {
+        if (closed) {
+            return;
+        }
+        if (lingerTimer != null) {
+            lingerTimer.cancel(false);
+            lingerTimer = null;
+        }
+        pending = ChatBatch.newBuilder();
+        closed = true;
+        target.onError(t);
+    }
+}
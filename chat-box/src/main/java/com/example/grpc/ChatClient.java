@@ -1,7 +1,14 @@
 package com.example.grpc;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
@@ -9,33 +16,72 @@ import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.ssl.ApplicationProtocolConfig;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 
-import java.io.FileNotFoundException;
-import java.io.InputStream;
-import java.security.KeyStore;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.KeyManagerFactory;
 
 public class ChatClient {
     private static final Logger logger = Logger.getLogger(ChatClient.class.getName());
+    private static boolean openSslFallbackLogged;
     private final ManagedChannel channel;
     private final ChatServiceGrpc.ChatServiceStub asyncStub;
+    private final AttachmentServiceGrpc.AttachmentServiceStub attachmentStub;
     private StreamObserver<ChatMessage> requestObserver;
+    private final ChatMetrics metrics = new ChatMetrics();
+    // 批量发送时用于 linger 定时刷新
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-batcher");
+        t.setDaemon(true);
+        return t;
+    });
 
     public ChatClient(String host, int port) throws Exception {
+        this(host, port, new TransportOptions());
+    }
+
+    public ChatClient(String host, int port, TransportOptions transport) throws Exception {
         logger.info("开始初始化ChatClient...");
+        SslContext sslContext = newSslContext(transport, metrics);
 
-        // 加载客户端证书、密钥以及CA证书
-        InputStream clientCertIs = getClass().getClassLoader().getResourceAsStream("certs/client.crt");
-        InputStream clientKeyIs = getClass().getClassLoader().getResourceAsStream("certs/client.key");
-        InputStream caIs = getClass().getClassLoader().getResourceAsStream("certs/ca.crt");
+        logger.info("创建gRPC通道...");
+        channel = newChannel(host, port, sslContext, transport);
+        logger.info("gRPC通道创建成功，传输方式: " + transport.describe(transport.resolveClientSslProvider()));
+        MetricsClientInterceptor metricsInterceptor = new MetricsClientInterceptor(metrics);
+        metricsInterceptor.watchConnections(channel);
+        Channel intercepted = ClientInterceptors.intercept(channel, metricsInterceptor);
+        asyncStub = ChatServiceGrpc.newStub(intercepted);
+        attachmentStub = AttachmentServiceGrpc.newStub(intercepted);
+        logger.info("ChatClient初始化完成");
+    }
+
+    /**
+     * 客户端的 SslContext。metrics 不为空时统计证书校验（完整握手）次数，用来计算会话恢复的命中率。
+     */
+    static SslContext newSslContext(TransportOptions transport, ChatMetrics metrics) throws Exception {
+        return newSslContext(transport, "client", metrics);
+    }
 
-        if (clientCertIs == null || clientKeyIs == null || caIs == null) {
-            logger.severe("必要的证书文件(.crt, .key, ca.crt)未找到，请先运行 generate_certs.sh 脚本。");
-            throw new FileNotFoundException("证书文件未找到！");
+    /**
+     * @param identity 证书目录里使用哪一组证书和私钥，普通客户端是 client，集群节点之间是 node
+     */
+    static SslContext newSslContext(TransportOptions transport, String identity, ChatMetrics metrics) throws Exception {
+        // 加载客户端证书、密钥以及CA证书，定期检查更新
+        TlsCredentials credentials = TlsCredentials.load(transport.tlsDir, identity);
+        if (metrics != null) {
+            credentials.onVerify(metrics::recordCertificateVerification);
         }
+        credentials.watch(transport.tlsReloadSeconds);
         logger.info("所有证书文件加载成功");
 
         // 配置ALPN
@@ -47,34 +93,243 @@ public class ChatClient {
             ApplicationProtocolNames.HTTP_2,
             ApplicationProtocolNames.HTTP_1_1);
 
-        logger.info("创建SSL上下文...");
-        SslContext sslContext = SslContextBuilder.forClient()
-                .sslProvider(SslProvider.JDK)
-                .keyManager(clientCertIs, clientKeyIs) // 客户端的证书和私钥
-                .trustManager(caIs) // 使用CA证书验证服务端
+        SslProvider provider = transport.resolveClientSslProvider();
+        if (provider != transport.resolveSslProvider()) {
+            logOpenSslFallback();
+        }
+        logger.info("创建SSL上下文，SSL实现: " + provider);
+        // 会话按 host:port 缓存，同一个 SslContext 创建的连接重连到同一个服务端时可以恢复会话
+        return SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .keyManager(credentials.keyManagerFactory(provider)) // 客户端的证书和私钥
+                .trustManager(credentials.trustManager()) // 使用CA证书验证服务端
                 .applicationProtocolConfig(alpnConfig)
+                .sessionCacheSize(transport.tlsSessionCacheSize)
+                .sessionTimeout(transport.tlsSessionTimeoutSeconds)
                 .build();
+    }
 
-        logger.info("创建gRPC通道...");
-        channel = NettyChannelBuilder.forAddress(host, port)
+    // 当前依赖的 Netty 版本里 OpenSSL 客户端不会复用缓存的会话，开启会话缓存时客户端改用 JDK
+    private static synchronized void logOpenSslFallback() {
+        if (!openSslFallbackLogged) {
+            openSslFallbackLogged = true;
+            logger.info("OpenSSL 客户端不支持 TLS 会话恢复，客户端改用 JDK；不需要会话恢复时设置 -Dchat.tls.session.cache=0");
+        }
+    }
+
+    static ManagedChannel newChannel(String host, int port, SslContext sslContext, TransportOptions transport) {
+        NettyChannelBuilder builder = NettyChannelBuilder.forAddress(host, port)
                 .sslContext(sslContext)
                 .keepAliveTime(60, TimeUnit.SECONDS)  // 设置 keepalive 时间
-                .keepAliveWithoutCalls(true)        // 允许在没有调用时发送 keepalive
-                .build();
-        logger.info("gRPC通道创建成功");
-        asyncStub = ChatServiceGrpc.newStub(channel);
-        logger.info("ChatClient初始化完成");
+                .keepAliveWithoutCalls(true);       // 允许在没有调用时发送 keepalive
+        transport.configure(builder);
+        return builder.build();
+    }
+
+    ChatMetrics metrics() {
+        return metrics;
     }
 
     public void shutdown() throws InterruptedException {
+        scheduler.shutdownNow();
         channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
     }
 
+    /**
+     * 打开一个批量模式的聊天流。发送的消息先在客户端合并，收到的 ChatBatch 被拆开逐条交给 handler。
+     */
+    public ChatBatcher chatBatched(StreamObserver<ChatMessage> handler, int maxBatchSize, long lingerMillis) {
+        StreamObserver<ChatBatch> responseObserver = new StreamObserver<ChatBatch>() {
+            @Override
+            public void onNext(ChatBatch batch) {
+                for (ChatMessage message : batch.getMessagesList()) {
+                    handler.onNext(message);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                handler.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                handler.onCompleted();
+            }
+        };
+        StreamObserver<ChatBatch> batchObserver = asyncStub.chatBatched(responseObserver);
+        return new ChatBatcher(batchObserver, maxBatchSize, lingerMillis, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    /**
+     * 回放聊天室从 fromOffset（含）开始的历史消息，回放完成时调用 handler.onCompleted()。
+     */
+    public void replay(String room, long fromOffset, StreamObserver<ChatMessage> handler) {
+        ReplayRequest request = ReplayRequest.newBuilder()
+                .setRoom(room)
+                .setFromOffset(fromOffset)
+                .build();
+        asyncStub.replay(request, new StreamObserver<ChatBatch>() {
+            @Override
+            public void onNext(ChatBatch batch) {
+                for (ChatMessage message : batch.getMessagesList()) {
+                    handler.onNext(message);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                handler.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                handler.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * 上传附件。文件映射到内存后按块直接包装成 ByteString，按流控逐块发出，不会把整个文件读进堆；
+     * 最后一块带上内容的 SHA-256。成功后服务端返回附件信息，并在聊天室里发一条附件通知。
+     */
+    public void uploadAttachment(Path path, String userId, String room, StreamObserver<Attachment> handler) throws IOException {
+        MappedByteBuffer content;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            content = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        String name = path.getFileName().toString();
+        attachmentStub.upload(new ClientResponseObserver<AttachmentChunk, Attachment>() {
+            private final MessageDigest digest = AttachmentServiceImpl.sha256();
+            private ClientCallStreamObserver<AttachmentChunk> requests;
+            private boolean first = true;
+            private boolean done;
+
+            @Override
+            public void beforeStart(ClientCallStreamObserver<AttachmentChunk> requestStream) {
+                requests = requestStream;
+                requestStream.setOnReadyHandler(this::pump);
+            }
+
+            // onReady 回调是串行的，发送缓冲区满了就停下，等下一次回调
+            private void pump() {
+                while (!done && requests.isReady()) {
+                    int length = Math.min(AttachmentServiceImpl.CHUNK_BYTES, content.remaining());
+                    ByteBuffer data = content.slice();
+                    data.limit(length);
+                    content.position(content.position() + length);
+                    digest.update(data.duplicate());
+                    AttachmentChunk.Builder chunk = AttachmentChunk.newBuilder().setData(UnsafeByteOperations.unsafeWrap(data));
+                    if (first) {
+                        chunk.setUserId(userId).setRoom(room).setName(name);
+                        first = false;
+                    }
+                    if (!content.hasRemaining()) {
+                        chunk.setSha256(ByteString.copyFrom(digest.digest()));
+                        done = true;
+                    }
+                    requests.onNext(chunk.build());
+                    if (done) {
+                        requests.onCompleted();
+                    }
+                }
+            }
+
+            @Override
+            public void onNext(Attachment attachment) {
+                handler.onNext(attachment);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                handler.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                handler.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * 下载附件到 target，边收边写，并校验内容的 SHA-256。完成时 handler 收到 target。
+     */
+    public void downloadAttachment(String id, Path target, StreamObserver<Path> handler) throws IOException {
+        FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        MessageDigest digest = AttachmentServiceImpl.sha256();
+        attachmentStub.download(AttachmentRequest.newBuilder().setId(id).build(), new StreamObserver<AttachmentChunk>() {
+            private ByteString hash = ByteString.EMPTY;
+            private IOException failure;
+
+            @Override
+            public void onNext(AttachmentChunk chunk) {
+                if (failure != null) {
+                    return;
+                }
+                try {
+                    for (ByteBuffer buffer : chunk.getData().asReadOnlyByteBufferList()) {
+                        digest.update(buffer.duplicate());
+                        while (buffer.hasRemaining()) {
+                            file.write(buffer);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                }
+                if (!chunk.getSha256().isEmpty()) {
+                    hash = chunk.getSha256();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                close();
+                handler.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                close();
+                String actual = AttachmentServiceImpl.bytesToHex(digest.digest());
+                if (failure != null) {
+                    handler.onError(failure);
+                } else if (!actual.equals(id) || !actual.equals(AttachmentServiceImpl.bytesToHex(hash.toByteArray()))) {
+                    handler.onError(Status.DATA_LOSS.withDescription("sha256 mismatch").asRuntimeException());
+                } else {
+                    handler.onNext(target);
+                    handler.onCompleted();
+                }
+            }
+
+            private void close() {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        });
+    }
+
     public void chat(String userId) {
+        chat(userId, "");
+    }
+
+    public void chat(String userId, String room) {
         StreamObserver<ChatMessage> responseObserver = new StreamObserver<ChatMessage>() {
             @Override
             public void onNext(ChatMessage message) {
-                logger.info("Received message from " + message.getUserId() + ": " + message.getContent());
+                if (message.hasAttachment()) {
+                    Attachment attachment = message.getAttachment();
+                    logger.info("[" + message.getRoom() + "] " + message.getUserId() + " shared " + attachment.getName()
+                            + " (" + attachment.getSize() + " bytes), /download " + attachment.getId() + " <path>");
+                    return;
+                }
+                logger.info("[" + message.getRoom() + "] Received message from " + message.getUserId() + ": " + message.getContent());
             }
 
             @Override
@@ -89,6 +344,8 @@ public class ChatClient {
         };
 
         requestObserver = asyncStub.chat(responseObserver);
+        // 先加入聊天室，没有发言也能收到房间里的消息
+        requestObserver.onNext(ChatMessage.newBuilder().setUserId(userId).setRoom(room).setJoin(true).build());
 
         try {
             Scanner scanner = new Scanner(System.in);
@@ -98,11 +355,17 @@ public class ChatClient {
                 if ("quit".equalsIgnoreCase(content)) {
                     break;
                 }
+                // /upload <文件> 上传附件，/download <附件ID> <文件> 下载附件
+                if (content.startsWith("/upload ") || content.startsWith("/download ")) {
+                    transferAttachment(content.split("\\s+"), userId, room);
+                    continue;
+                }
 
                 ChatMessage message = ChatMessage.newBuilder()
                         .setUserId(userId)
                         .setContent(content)
                         .setTimestamp(System.currentTimeMillis())
+                        .setRoom(room)
                         .build();
                 requestObserver.onNext(message);
             }
@@ -113,11 +376,51 @@ public class ChatClient {
         requestObserver.onCompleted();
     }
 
+    private void transferAttachment(String[] command, String userId, String room) {
+        try {
+            if ("/upload".equals(command[0]) && command.length == 2) {
+                uploadAttachment(Paths.get(command[1]), userId, room, logResult(command[0]));
+            } else if ("/download".equals(command[0]) && command.length == 3) {
+                downloadAttachment(command[1], Paths.get(command[2]), logResult(command[0]));
+            } else {
+                System.out.println("Usage: /upload <file> | /download <id> <file>");
+            }
+        } catch (IOException e) {
+            logger.warning(command[0] + " failed: " + e.getMessage());
+        }
+    }
+
+    private static <T> StreamObserver<T> logResult(String command) {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+                logger.info(command + " done: " + value);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warning(command + " failed: " + t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
     public static void main(String[] args) throws Exception {
+        // 用法: ChatClient [userId] [room]，或 ChatClient --load --name=value ... 进入压测模式
+        if (args.length > 0 && "--load".equals(args[0])) {
+            ChatLoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        String userId = args.length > 0 ? args[0] : "user1";
+        String room = args.length > 1 ? args[1] : "";
         ChatClient client = new ChatClient("localhost", 50051);
         try {
-            client.chat("user1");
+            client.chat(userId, room);
         } finally {
+            logger.info("Metrics: " + client.metrics().summary());
             client.shutdown();
         }
     }
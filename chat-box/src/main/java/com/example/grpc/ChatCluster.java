@@ -0,0 +1,429 @@
+package com.example.grpc;
+
+import io.grpc.CallOptions;
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Grpc;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import io.netty.handler.ssl.SslContext;
+
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 由静态节点列表组成的 ChatServer 集群。
+ *
+ * <p>聊天室按一致性哈希分配给 owner 节点。入口节点把客户端发来的消息转发给 owner，
+ * owner 统一定序、写日志并投递给本地订阅者，再分发给声明过订阅的节点，由它们投递给各自的订阅者。
+ * 同一个聊天室在所有节点上看到的顺序一致，每条消息只在 owner 上写一次日志。
+ * 节点在某个聊天室出现第一个本地订阅者时向 owner 订阅，没有订阅者的节点收不到这个房间的消息，
+ * 所以每条消息的网络开销只和有订阅者的节点数有关，而不是集群规模。
+ *
+ * <p>owner 不可达时转发给它的消息会被丢弃（计数见 {@link ClusterLink}），节点列表在运行期间不变。
+ *
+ * <p>转发服务只接受 TLS 证书 CN 在 chat.cluster.peer.names 里的对端，节点之间用证书目录里的 node 证书互连，
+ * 持有普通客户端证书的调用方不能冒充节点注入消息。ForwardBatch.from_node 是对端自己填的，只用来区分订阅；
+ * 每个节点使用自己的证书、CN 就是节点 ID 时，from_node 还必须与证书一致。
+ */
+final class ChatCluster implements ChatRoomRegistry.RoomListener {
+    private static final Logger logger = Logger.getLogger(ChatCluster.class.getName());
+    // 通过认证的对端证书 CN
+    private static final Context.Key<String> PEER_NAME = Context.key("chat-cluster-peer");
+
+    private final String self;
+    private final Set<String> peerNames;
+    private final ConsistentHashRing ring;
+    private final Map<String, ClusterLink> links = new LinkedHashMap<>();
+    // 聊天室 -> 有订阅的对端节点 -> 声明订阅的那条入站流，对端重连时旧流的清理不会误删新流的订阅
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, Object>> remoteSubscribers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-cluster");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<InboundLink> inboundLinks = ConcurrentHashMap.newKeySet();
+    // 转发过来但投递失败的消息数（日志积压、消息无效等），只丢这一条，链路保持
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LogSampler dropLogSampler = new LogSampler(1000);
+    private volatile ChatServiceImpl service;
+    private volatile AdmissionControl admission;
+
+    ChatCluster(ChatServerConfig config, int port) throws Exception {
+        self = config.clusterSelf.isEmpty() ? "localhost:" + port : config.clusterSelf;
+        List<String> nodes = new ArrayList<>();
+        for (String node : config.clusterPeers.split(",")) {
+            node = node.trim();
+            if (!node.isEmpty() && !nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        if (!nodes.contains(self)) {
+            nodes.add(self);
+        }
+        ring = new ConsistentHashRing(nodes, config.clusterVirtualNodes);
+        peerNames = new HashSet<>();
+        for (String name : config.clusterPeerNames.split(",")) {
+            if (!name.trim().isEmpty()) {
+                peerNames.add(name.trim());
+            }
+        }
+        SslContext sslContext = ChatClient.newSslContext(config.transport, "node", null);
+        for (String node : nodes) {
+            if (node.equals(self)) {
+                continue;
+            }
+            int colon = node.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("集群节点应为 host:port 格式: " + node);
+            }
+            ManagedChannel channel = ChatClient.newChannel(node.substring(0, colon),
+                    Integer.parseInt(node.substring(colon + 1)), sslContext, config.transport);
+            links.put(node, new ClusterLink(self, node, channel, config.clusterBatchSize, config.clusterLingerMillis,
+                    scheduler, () -> localRoomsOwnedBy(node)));
+        }
+    }
+
+    String self() {
+        return self;
+    }
+
+    boolean owns(String room) {
+        return self.equals(ring.owner(room));
+    }
+
+    /**
+     * 绑定本地的聊天服务并开始连接其他节点。需要在 gRPC 服务启动前调用，这样收到的第一批转发就能找到服务。
+     */
+    void start(ChatServiceImpl service, AdmissionControl admission) {
+        this.service = service;
+        this.admission = admission;
+        service.rooms().setRoomListener(this);
+        for (ClusterLink link : links.values()) {
+            link.start();
+        }
+        logger.info("Cluster node " + self + ", members " + ring.nodes());
+    }
+
+    void close() {
+        for (ClusterLink link : links.values()) {
+            link.close();
+        }
+        // 主动结束对端发来的转发流，对端会重连到重启后的进程，而不是继续发给正在优雅关闭的这个进程
+        for (InboundLink inbound : inboundLinks) {
+            inbound.shutdown();
+        }
+        scheduler.shutdownNow();
+    }
+
+    /** 把客户端发到本节点、但不归本节点所有的消息转发给 owner */
+    void forward(String room, ChatMessage message) {
+        links.get(ring.owner(room)).forward(message);
+    }
+
+    boolean hasRemoteSubscribers(String room) {
+        return remoteSubscribers.containsKey(room);
+    }
+
+    /** owner 把定序后的消息分发给对这个聊天室有订阅的节点 */
+    void fanOut(String room, ChatMessage message) {
+        Map<String, Object> nodes = remoteSubscribers.get(room);
+        if (nodes == null) {
+            return;
+        }
+        for (String node : nodes.keySet()) {
+            links.get(node).fanOut(message);
+        }
+    }
+
+    @Override
+    public void roomOpened(String room) {
+        String owner = ring.owner(room);
+        if (!owner.equals(self)) {
+            links.get(owner).subscribe(room);
+        }
+    }
+
+    @Override
+    public void roomClosed(String room) {
+        String owner = ring.owner(room);
+        if (!owner.equals(self)) {
+            links.get(owner).unsubscribe(room);
+        }
+    }
+
+    /**
+     * 本节点不是 owner 时，把回放请求代理到 owner 的日志。按下游客户端的流控逐批向 owner 请求。
+     */
+    void replay(String room, ReplayRequest request, ServerCallStreamObserver<EncodedMessage> response) {
+        ManagedChannel channel = links.get(ring.owner(room)).channel();
+        ReplayProxy proxy = new ReplayProxy(response);
+        ClientCalls.asyncServerStreamingCall(channel.newCall(ChatServiceGrpc.getReplayMethod(), CallOptions.DEFAULT), request, proxy);
+        // 上游调用已经开始，之后才能按下游的可写状态 request
+        response.setOnReadyHandler(() -> proxy.upstream.request(1));
+        response.setOnCancelHandler(() -> proxy.upstream.cancel("client cancelled", null));
+    }
+
+    String describe() {
+        return "node " + self + ", links " + links.values() + ", remote subscribed rooms " + remoteSubscribers.size()
+                + ", dropped forwarded messages " + droppedMessages.sum();
+    }
+
+    ServerServiceDefinition service() {
+        ClusterServiceGrpc.ClusterServiceImplBase impl = new ClusterServiceGrpc.ClusterServiceImplBase() {
+            @Override
+            public StreamObserver<ForwardBatch> forward(StreamObserver<ForwardAck> responseObserver) {
+                InboundLink inbound = new InboundLink(responseObserver, PEER_NAME.get());
+                inboundLinks.add(inbound);
+                return inbound;
+            }
+        };
+        return ServerInterceptors.intercept(impl, new PeerAuthenticator());
+    }
+
+    private Collection<String> localRoomsOwnedBy(String node) {
+        ChatServiceImpl current = service;
+        if (current == null) {
+            return new ArrayList<>();
+        }
+        return current.rooms().roomNames().stream()
+                .filter(room -> ring.owner(room).equals(node))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 按 TLS 握手里已经校验过的对端证书认证集群节点，不认识的证书以 PERMISSION_DENIED 结束调用。
+     */
+    private final class PeerAuthenticator implements ServerInterceptor {
+        @Override
+        public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                     ServerCallHandler<ReqT, RespT> next) {
+            String name = peerName(call.getAttributes().get(Grpc.TRANSPORT_ATTR_SSL_SESSION));
+            if (name == null || !peerNames.contains(name)) {
+                logger.warning("拒绝来自 " + call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR)
+                        + " 的集群转发调用，证书 CN " + name + " 不在 " + peerNames + " 中");
+                call.close(Status.PERMISSION_DENIED.withDescription("not a cluster peer"), new Metadata());
+                return new ServerCall.Listener<ReqT>() { };
+            }
+            return Contexts.interceptCall(Context.current().withValue(PEER_NAME, name), call, headers, next);
+        }
+    }
+
+    // 对端证书链第一张证书的 CN，没有客户端证书时返回 null
+    private static String peerName(SSLSession session) {
+        if (session == null) {
+            return null;
+        }
+        try {
+            Certificate[] chain = session.getPeerCertificates();
+            if (chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+                return null;
+            }
+            String subject = ((X509Certificate) chain[0]).getSubjectX500Principal().getName();
+            for (Rdn rdn : new LdapName(subject).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    return rdn.getValue().toString();
+                }
+            }
+            return null;
+        } catch (SSLPeerUnverifiedException | InvalidNameException e) {
+            return null;
+        }
+    }
+
+    private static final class ReplayProxy implements ClientResponseObserver<ReplayRequest, ChatBatch> {
+        private final ServerCallStreamObserver<EncodedMessage> response;
+        private ClientCallStreamObserver<ReplayRequest> upstream;
+
+        ReplayProxy(ServerCallStreamObserver<EncodedMessage> response) {
+            this.response = response;
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReplayRequest> requestStream) {
+            upstream = requestStream;
+            requestStream.disableAutoRequestWithInitial(1);
+        }
+
+        @Override
+        public void onNext(ChatBatch batch) {
+            response.onNext(EncodedMessage.of(batch));
+            if (response.isReady()) {
+                upstream.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            response.onError(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            response.onCompleted();
+        }
+    }
+
+    /**
+     * 一个对端节点发来的 Forward 流。同一条流上的回调是串行的。
+     */
+    private final class InboundLink implements StreamObserver<ForwardBatch> {
+        private final StreamObserver<ForwardAck> responseObserver;
+        private final String peerName;
+        private String node;
+        private boolean finished;
+
+        InboundLink(StreamObserver<ForwardAck> responseObserver, String peerName) {
+            this.responseObserver = responseObserver;
+            this.peerName = peerName;
+        }
+
+        @Override
+        public void onNext(ForwardBatch batch) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+            }
+            // 对端节点不按用户限速，但同样占用在途预算、在堆压力过大时被拒绝；断开后对端会重连并重新声明订阅
+            int messages = batch.getMessagesCount();
+            int bytes = batch.getSerializedSize();
+            Status status = admission.admitMessage(messages, bytes);
+            if (status != null) {
+                logger.warning("拒绝来自节点 " + node + " 的转发: " + status.getDescription());
+                fail(status);
+                return;
+            }
+            try {
+                handle(batch);
+            } finally {
+                admission.release(messages, bytes);
+            }
+        }
+
+        private void handle(ForwardBatch batch) {
+            if (node == null) {
+                String from = batch.getFromNode();
+                // 证书本身标识了某个节点时，只能以这个节点的身份转发
+                if (!links.containsKey(from) || (links.containsKey(peerName) && !peerName.equals(from))) {
+                    logger.warning("忽略来自未知节点的转发: " + from + "（证书 CN " + peerName + "）");
+                    return;
+                }
+                node = from;
+            }
+            for (String room : batch.getSubscribeList()) {
+                remoteSubscribers.compute(room, (key, nodes) -> {
+                    if (nodes == null) {
+                        nodes = new ConcurrentHashMap<>();
+                    }
+                    nodes.put(node, this);
+                    return nodes;
+                });
+            }
+            for (String room : batch.getUnsubscribeList()) {
+                remoteSubscribers.computeIfPresent(room, (key, nodes) -> {
+                    nodes.remove(node);
+                    return nodes.isEmpty() ? null : nodes;
+                });
+            }
+            ChatServiceImpl target = service;
+            for (ChatMessage message : batch.getMessagesList()) {
+                // 一条消息失败（某个房间的日志积压、房间名或消息太大）只丢这一条，
+                // 同一批里其他房间的消息和整条链路不受影响
+                try {
+                    if (batch.getFromOwner()) {
+                        target.deliverReplica(message);
+                    } else {
+                        target.deliverOwned(ChatRoomRegistry.roomOf(message), message);
+                    }
+                } catch (RuntimeException e) {
+                    droppedMessages.increment();
+                    long skipped = dropLogSampler.sample();
+                    if (skipped >= 0) {
+                        logger.warning("丢弃来自节点 " + node + " 的消息（聊天室 " + ChatRoomRegistry.roomOf(message) + "）: "
+                                + Status.fromThrowable(e) + (skipped > 0 ? " (省略了之前的 " + skipped + " 条)" : ""));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.warning("来自节点 " + node + " 的转发流出错: " + t.getMessage());
+            synchronized (this) {
+                finished = true;
+            }
+            release();
+        }
+
+        @Override
+        public void onCompleted() {
+            release();
+            synchronized (this) {
+                if (!finished) {
+                    finished = true;
+                    responseObserver.onNext(ForwardAck.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+            }
+        }
+
+        void shutdown() {
+            fail(Status.UNAVAILABLE.withDescription("node shutting down"));
+        }
+
+        private void fail(Status status) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                responseObserver.onError(status.asRuntimeException());
+            }
+            release();
+        }
+
+        // 只删除由这条流声明的订阅
+        private void release() {
+            inboundLinks.remove(this);
+            if (node == null) {
+                return;
+            }
+            for (String room : remoteSubscribers.keySet()) {
+                remoteSubscribers.computeIfPresent(room, (key, nodes) -> {
+                    nodes.remove(node, this);
+                    return nodes.isEmpty() ? null : nodes;
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.grpc;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import io.netty.handler.ssl.SslContext;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 无交互的压测客户端，用来给 ChatServer 做容量规划。
+ *
+ * <p>打开 channels × streams 条 Chat 流，每条流进入自己的聊天室，按目标速率发送指定大小的消息，
+ * 收到自己发出的消息（服务端广播回来）时计算往返延迟。压测消息的 timestamp 字段写的是发送时的
+ * System.nanoTime()，只有同一个进程能解释它，所以每条流只统计 user_id 是自己的消息。
+ *
+ * <p>另外可以用 --idle 打开一批只加入聊天室、之后不再发送的空闲流，用来对比服务端在大量空闲连接下的内存和延迟。
+ *
+ * <p>用法: ChatLoadGenerator --host=localhost --port=50051 --channels=4 --streams=25
+ *   --size=256 --rate=10000 --duration=60 [--idle=100000] [--room=load] [--out=result.json|result.csv]
+ */
+public class ChatLoadGenerator {
+    private static final Logger logger = Logger.getLogger(ChatLoadGenerator.class.getName());
+    // 发送节拍，每个节拍补发这段时间内按速率应发的消息
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Options options;
+    // 单位微秒，最大 60 秒，3 位有效数字
+    private final Histogram latency = new ConcurrentHistogram(1, TimeUnit.SECONDS.toMicros(60), 3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder notReady = new LongAdder();
+    private final Map<Status.Code, LongAdder> errors = new ConcurrentHashMap<>();
+    private final List<LoadStream> streams = new ArrayList<>();
+    private final List<StreamObserver<ChatMessage>> idleStreams = new ArrayList<>();
+    private final List<ManagedChannel> channels = new ArrayList<>();
+
+    static final class Options {
+        String host = "localhost";
+        int port = 50051;
+        int channels = 1;
+        int streams = 10;
+        int size = 128;
+        int rate = 1000;
+        int duration = 30;
+        int idle = 0;
+        String room = "load";
+        String out;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("参数格式应为 --name=value: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "host": options.host = value; break;
+                    case "port": options.port = Integer.parseInt(value); break;
+                    case "channels": options.channels = Integer.parseInt(value); break;
+                    case "streams": options.streams = Integer.parseInt(value); break;
+                    case "size": options.size = Integer.parseInt(value); break;
+                    case "rate": options.rate = Integer.parseInt(value); break;
+                    case "duration": options.duration = Integer.parseInt(value); break;
+                    case "idle": options.idle = Integer.parseInt(value); break;
+                    case "room": options.room = value; break;
+                    case "out": options.out = value; break;
+                    default: throw new IllegalArgumentException("未知参数: " + name);
+                }
+            }
+            return options;
+        }
+
+        int totalStreams() {
+            return channels * streams;
+        }
+    }
+
+    ChatLoadGenerator(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        // 压测期间只保留警告，避免日志本身成为瓶颈
+        Logger.getLogger("com.example.grpc").setLevel(Level.WARNING);
+        ChatLoadGenerator generator = new ChatLoadGenerator(options);
+        Result result = generator.run();
+        System.out.println(result.summary());
+        if (options.out != null) {
+            result.export(Paths.get(options.out));
+            System.out.println("结果已写入 " + options.out);
+        }
+    }
+
+    Result run() throws Exception {
+        TransportOptions transport = new TransportOptions();
+        SslContext sslContext = ChatClient.newSslContext(transport, null);
+        String runId = Long.toHexString(System.nanoTime() & 0xFFFFFF);
+        String content = repeat('x', options.size);
+        double ratePerStream = (double) options.rate / options.totalStreams();
+
+        for (int c = 0; c < options.channels; c++) {
+            ManagedChannel channel = ChatClient.newChannel(options.host, options.port, sslContext, transport);
+            channels.add(channel);
+            ChatServiceGrpc.ChatServiceStub stub = ChatServiceGrpc.newStub(channel);
+            for (int s = 0; s < options.streams; s++) {
+                int index = c * options.streams + s;
+                LoadStream stream = new LoadStream("loadgen-" + runId + "-" + index, options.room + "-" + index, content);
+                stub.chat(stream);
+                streams.add(stream);
+            }
+        }
+        openIdleStreams(runId);
+        logger.warning("Load started: " + options.totalStreams() + " streams on " + options.channels + " channels, "
+                + options.rate + " msg/s, " + options.size + " bytes, " + options.duration + " s, "
+                + options.idle + " idle streams");
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(options.duration);
+        long next = start;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            double elapsedSeconds = (now - start) / 1e9;
+            long due = (long) (elapsedSeconds * ratePerStream);
+            for (LoadStream stream : streams) {
+                stream.sendUpTo(due);
+            }
+            next += TICK_NANOS;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            }
+        }
+        long sendElapsed = System.nanoTime() - start;
+
+        // 等待在途消息回来
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.sum() < sent.sum() && System.nanoTime() < drainDeadline && errorCount() == 0) {
+            Thread.sleep(50);
+        }
+        for (LoadStream stream : streams) {
+            stream.complete();
+        }
+        for (StreamObserver<ChatMessage> idle : idleStreams) {
+            idle.onCompleted();
+        }
+        for (ManagedChannel channel : channels) {
+            channel.shutdown();
+        }
+        for (ManagedChannel channel : channels) {
+            channel.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        return new Result(sendElapsed);
+    }
+
+    /**
+     * 在已有的通道上轮流打开空闲流，每个流发一条 join 消息加入自己的聊天室，之后只接收。
+     */
+    private void openIdleStreams(String runId) {
+        StreamObserver<ChatMessage> ignore = new StreamObserver<ChatMessage>() {
+            @Override
+            public void onNext(ChatMessage message) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                errors.computeIfAbsent(Status.fromThrowable(t).getCode(), k -> new LongAdder()).increment();
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+        List<ChatServiceGrpc.ChatServiceStub> stubs = new ArrayList<>();
+        for (ManagedChannel channel : channels) {
+            stubs.add(ChatServiceGrpc.newStub(channel));
+        }
+        for (int i = 0; i < options.idle; i++) {
+            StreamObserver<ChatMessage> stream = stubs.get(i % stubs.size()).chat(ignore);
+            String userId = "idle-" + runId + "-" + i;
+            stream.onNext(ChatMessage.newBuilder().setUserId(userId).setRoom(options.room + "-" + userId).setJoin(true).build());
+            idleStreams.add(stream);
+        }
+    }
+
+    private long errorCount() {
+        long total = 0;
+        for (LongAdder adder : errors.values()) {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private final class LoadStream implements ClientResponseObserver<ChatMessage, ChatMessage> {
+        private final String userId;
+        private final ChatMessage.Builder template;
+        private final AtomicLong sentCount = new AtomicLong();
+        private volatile ClientCallStreamObserver<ChatMessage> requestStream;
+        private volatile boolean closed;
+
+        LoadStream(String userId, String room, String content) {
+            this.userId = userId;
+            this.template = ChatMessage.newBuilder().setUserId(userId).setRoom(room).setContent(content);
+        }
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ChatMessage> requestStream) {
+            this.requestStream = requestStream;
+        }
+
+        // 由发送线程调用，补发到 due 条；流暂时不可写时记为 notReady 并跳过，不在客户端堆积
+        void sendUpTo(long due) {
+            ClientCallStreamObserver<ChatMessage> stream = requestStream;
+            if (stream == null || closed) {
+                return;
+            }
+            while (sentCount.get() < due) {
+                if (!stream.isReady()) {
+                    notReady.add(due - sentCount.get());
+                    sentCount.set(due);
+                    return;
+                }
+                stream.onNext(template.setTimestamp(System.nanoTime()).build());
+                sentCount.incrementAndGet();
+                sent.increment();
+            }
+        }
+
+        void complete() {
+            if (!closed) {
+                closed = true;
+                requestStream.onCompleted();
+            }
+        }
+
+        @Override
+        public void onNext(ChatMessage message) {
+            if (!userId.equals(message.getUserId())) {
+                return;
+            }
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - message.getTimestamp());
+            latency.recordValue(Math.max(1, Math.min(micros, latency.getHighestTrackableValue())));
+            received.increment();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            closed = true;
+            errors.computeIfAbsent(Status.fromThrowable(t).getCode(), k -> new LongAdder()).increment();
+        }
+
+        @Override
+        public void onCompleted() {
+            closed = true;
+        }
+    }
+
+    final class Result {
+        final Instant finishedAt = Instant.now();
+        final long elapsedNanos;
+        final long sentTotal = sent.sum();
+        final long receivedTotal = received.sum();
+        final long notReadyTotal = notReady.sum();
+        final Map<String, Long> errorCounts = new HashMap<>();
+        final Histogram histogram = latency.copy();
+
+        Result(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            errors.forEach((code, count) -> errorCounts.put(code.name(), count.sum()));
+        }
+
+        double throughput() {
+            return receivedTotal / (elapsedNanos / 1e9);
+        }
+
+        double percentileMillis(double percentile) {
+            return histogram.getValueAtPercentile(percentile) / 1000.0;
+        }
+
+        String summary() {
+            return String.format(Locale.ROOT, "streams=%d idle=%d sent=%d received=%d notReady=%d errors=%s%n"
+                            + "throughput=%.1f msg/s%n"
+                            + "latency ms: p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f",
+                    options.totalStreams(), options.idle, sentTotal, receivedTotal, notReadyTotal, errorCounts, throughput(),
+                    percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+                    histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0);
+        }
+
+        /**
+         * 按扩展名导出为 JSON 或 CSV。CSV 追加到已有文件末尾，方便积累多次运行做回归对比。
+         */
+        void export(Path path) throws IOException {
+            String name = path.getFileName().toString().toLowerCase();
+            if (name.endsWith(".csv")) {
+                boolean header = !Files.exists(path) || Files.size(path) == 0;
+                StringBuilder sb = new StringBuilder();
+                if (header) {
+                    sb.append("finished_at,channels,streams,size,target_rate,duration_s,sent,received,not_ready,errors,"
+                            + "throughput,p50_ms,p90_ms,p99_ms,p999_ms,max_ms,mean_ms,idle_streams\n");
+                }
+                sb.append(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%d,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d%n",
+                        finishedAt, options.channels, options.totalStreams(), options.size, options.rate,
+                        options.duration, sentTotal, receivedTotal, notReadyTotal, errorCount(), throughput(),
+                        percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+                        histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0, options.idle));
+                Files.write(path, sb.toString().getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } else {
+                StringBuilder errorsJson = new StringBuilder("{");
+                errorCounts.forEach((code, count) -> {
+                    if (errorsJson.length() > 1) {
+                        errorsJson.append(',');
+                    }
+                    errorsJson.append('"').append(code).append("\":").append(count);
+                });
+                errorsJson.append('}');
+                String json = String.format(Locale.ROOT, "{%n"
+                                + "  \"finishedAt\": \"%s\",%n"
+                                + "  \"config\": {\"host\": \"%s\", \"port\": %d, \"channels\": %d, \"streams\": %d, "
+                                + "\"size\": %d, \"targetRate\": %d, \"durationSeconds\": %d, \"idleStreams\": %d},%n"
+                                + "  \"sent\": %d,%n  \"received\": %d,%n  \"notReady\": %d,%n  \"errors\": %s,%n"
+                                + "  \"throughput\": %.1f,%n"
+                                + "  \"latencyMillis\": {\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, "
+                                + "\"max\": %.3f, \"mean\": %.3f}%n}%n",
+                        finishedAt, options.host, options.port, options.channels, options.totalStreams(), options.size,
+                        options.rate, options.duration, options.idle, sentTotal, receivedTotal, notReadyTotal, errorsJson, throughput(),
+                        percentileMillis(50), percentileMillis(90), percentileMillis(99), percentileMillis(99.9),
+                        histogram.getMaxValue() / 1000.0, histogram.getMean() / 1000.0);
+                Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
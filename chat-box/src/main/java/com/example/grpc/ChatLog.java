@@ -0,0 +1,617 @@
+package com.example.grpc;
+
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * 只追加的聊天消息日志，按段存放在内存映射文件里。
+ *
+ * <p>每条记录的格式：
+ * <pre>
+ *   int   length      之后所有字段的字节数
+ *   int   crc32       offset 到 payload 的 CRC，用来识别崩溃时写了一半的记录
+ *   long  offset      服务端分配的递增序号，从 1 开始
+ *   long  timestamp   服务端收到消息的时间（毫秒，单调不减）
+ *   short roomLength
+ *   byte[] room       UTF-8
+ *   byte[] payload    已编码的 ChatMessage，末尾追加了 offset 字段
+ * </pre>
+ *
+ * <p>追加只在很短的锁内分配 offset 并放入待写队列，由单独的写线程成批写入映射区，
+ * 每批只 force 一次（group commit）。一批提交之后 {@link #committedOffset()} 前进并通知提交监听器，
+ * 调用方只有在这之后才能把 offset 交给客户端，否则重启后同一个 offset 会被重新分配。
+ * 写入失败时日志进入失败状态：没有提交的记录被丢弃，之后的追加都会失败，不会留下已经发出去却不在磁盘上的 offset。
+ * 写完的位置对回放可见，内存里为每个段维护一个稀疏索引，按 offset 或时间戳定位后顺序扫描，回放时消息直接从映射区切片发送。
+ */
+final class ChatLog implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ChatLog.class.getName());
+    private static final String SUFFIX = ".log";
+    private static final String LOCK_FILE = ".lock";
+    // length(4) + crc(4) + offset(8) + timestamp(8) + roomLength(2)
+    private static final int HEADER_SIZE = 26;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final int MAX_PENDING = 65536;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final boolean fsync;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Thread writer;
+    // 整个进程持有目录的独占锁，两个进程映射同一组段文件会互相覆盖
+    private final FileChannel lockChannel;
+    private volatile Runnable commitListener = () -> { };
+    // 写入失败的原因，不为 null 时不再接受追加
+    private volatile Throwable failure;
+    // 只在段提交之后由写线程更新；滚动到新段时新段先加入 segments，还没有提交，不能用它的 lastOffset
+    private volatile long committedOffset;
+    // 以下字段由 lock 保护
+    private ArrayDeque<Record> pending = new ArrayDeque<>();
+    private ArrayDeque<Record> writing = new ArrayDeque<>();
+    private long nextOffset;
+    private long lastTimestamp;
+    private boolean closed;
+
+    private ChatLog(Path dir, int segmentBytes, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        this.lockChannel = lockDirectory(dir);
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+        this.writer = new Thread(this::writeLoop, "chat-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static ChatLog open(Path dir, int segmentBytes, boolean fsync) throws IOException {
+        if (segmentBytes < 64 * 1024) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        return new ChatLog(dir, segmentBytes, fsync);
+    }
+
+    private static FileChannel lockDirectory(Path dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock fileLock;
+        try {
+            fileLock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (fileLock == null) {
+            channel.close();
+            throw new IOException("聊天日志目录 " + dir.toAbsolutePath() + " 正在被其他进程使用，"
+                    + "本机启动多个节点时每个节点要用不同的 -Dchat.log.dir");
+        }
+        return channel;
+    }
+
+    /**
+     * 设置提交监听器，写线程每提交一批记录或者日志进入失败状态后在写线程上调用一次。
+     */
+    void onCommit(Runnable listener) {
+        commitListener = listener;
+    }
+
+    /**
+     * 给消息分配 offset 并放入待写队列，返回的记录里有 offset 和带 offset 字段的消息编码。
+     * 不等待写盘，也不会阻塞：待写队列已满时返回 null，由调用方决定拒绝还是重试。
+     * offset 要等 {@link #committedOffset()} 不小于它之后才能交给客户端。
+     *
+     * @throws IllegalStateException 日志已关闭或者写入失败
+     */
+    Record append(String room, ChatMessage message) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("room name too long: " + roomBytes.length + " bytes");
+        }
+        int messageSize = message.getSerializedSize();
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IllegalStateException("聊天日志写入失败，已停止追加", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("聊天日志已关闭");
+            }
+            if (pending.size() >= MAX_PENDING) {
+                return null;
+            }
+            long offset = nextOffset;
+            byte[] payload = new byte[messageSize + CodedOutputStream.computeInt64Size(ChatMessage.OFFSET_FIELD_NUMBER, offset)];
+            if (HEADER_SIZE + roomBytes.length + payload.length > segmentBytes) {
+                throw new IllegalArgumentException("message too large for log segment: " + payload.length + " bytes");
+            }
+            // proto3 解析时同一字段以最后出现的为准，所以直接在编码末尾追加 offset 即可覆盖客户端带来的值
+            CodedOutputStream output = CodedOutputStream.newInstance(payload);
+            message.writeTo(output);
+            output.writeInt64(ChatMessage.OFFSET_FIELD_NUMBER, offset);
+            output.checkNoSpaceLeft();
+
+            nextOffset++;
+            lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+            Record record = new Record(offset, lastTimestamp, roomBytes, payload);
+            pending.addLast(record);
+            notEmpty.signal();
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 已经写入并对回放可见的最大 offset，日志为空时为 0 */
+    long committedOffset() {
+        return committedOffset;
+    }
+
+    /** 写入失败后为 true，此后不会再有记录提交 */
+    boolean failed() {
+        return failure != null;
+    }
+
+    /** 从 fromOffset（含）开始读取指定聊天室的消息 */
+    Cursor fromOffset(String room, long fromOffset) {
+        int index = 0;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            if (segments.get(i).baseOffset <= fromOffset) {
+                index = i;
+                break;
+            }
+        }
+        int position = segments.isEmpty() ? 0 : segments.get(index).floorPositionByOffset(fromOffset);
+        return new Cursor(room, fromOffset, 0, index, position);
+    }
+
+    /** 从服务端时间戳 fromTimestamp（毫秒，含）开始读取指定聊天室的消息 */
+    Cursor fromTimestamp(String room, long fromTimestamp) {
+        int index = Math.max(0, segments.size() - 1);
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).lastTimestamp >= fromTimestamp) {
+                index = i;
+                break;
+            }
+        }
+        int position = segments.isEmpty() ? 0 : segments.get(index).floorPositionByTimestamp(fromTimestamp);
+        return new Cursor(room, 0, fromTimestamp, index, position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+        // 关闭通道同时释放目录锁
+        lockChannel.close();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            ArrayDeque<Record> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // 双缓冲：写线程拿走整批记录，追加方继续往另一个队列里放
+                batch = pending;
+                pending = writing;
+                writing = batch;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                writeBatch(batch);
+            } catch (IOException | RuntimeException e) {
+                fail(batch, e);
+                notifyCommit();
+                return;
+            }
+            batch.clear();
+            notifyCommit();
+        }
+    }
+
+    /**
+     * 写入失败后停止追加。这些记录的 offset 还没有交给任何客户端，直接丢弃；
+     * 已经写进映射区但没有提交的部分在段里截断，重启后不会被恢复出来。
+     */
+    private void fail(ArrayDeque<Record> batch, Exception cause) {
+        int dropped;
+        lock.lock();
+        try {
+            failure = cause;
+            dropped = batch.size() + pending.size();
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        batch.clear();
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last != null && last.committedPosition + 8 <= last.buffer.capacity()) {
+            last.buffer.putInt(last.committedPosition, 0);
+        }
+        logger.severe("写入聊天日志失败，停止追加，未提交的 " + dropped + " 条记录没有发给任何客户端: " + cause);
+    }
+
+    private void notifyCommit() {
+        try {
+            commitListener.run();
+        } catch (RuntimeException e) {
+            logger.warning("聊天日志提交监听器出错: " + e);
+        }
+    }
+
+    private void writeBatch(ArrayDeque<Record> batch) throws IOException {
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        for (Record record : batch) {
+            int size = 8 + record.bodyLength();
+            if (segment == null || segment.writePosition + size > segmentBytes) {
+                if (segment != null) {
+                    seal(segment);
+                }
+                segment = Segment.create(dir.resolve(fileName(record.offset)), record.offset, segmentBytes);
+                segments.add(segment);
+            }
+            segment.write(record);
+        }
+        if (segment != null) {
+            seal(segment);
+        }
+    }
+
+    private void seal(Segment segment) {
+        if (fsync) {
+            segment.buffer.force();
+        }
+        segment.commit();
+        committedOffset = Math.max(committedOffset, segment.lastOffset);
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            Segment segment = Segment.open(file, baseOffset, segmentBytes);
+            segment.recover();
+            segments.add(segment);
+            // 最后一段可能是崩溃前刚创建、还是空的
+            committedOffset = Math.max(committedOffset, segment.lastOffset);
+        }
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        nextOffset = last == null ? 1 : Math.max(last.baseOffset, last.lastOffset + 1);
+        lastTimestamp = last == null ? 0 : last.lastTimestamp;
+        logger.info("Chat log opened at " + dir.toAbsolutePath() + " with " + segments.size()
+                + " segments, next offset " + nextOffset);
+    }
+
+    private static String fileName(long baseOffset) {
+        return String.format("%020d%s", baseOffset, SUFFIX);
+    }
+
+    /** 待写的一条记录 */
+    static final class Record {
+        final long offset;
+        final long timestamp;
+        final byte[] room;
+        // 已编码的 ChatMessage，末尾追加了 offset 字段
+        final byte[] payload;
+
+        Record(long offset, long timestamp, byte[] room, byte[] payload) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.payload = payload;
+        }
+
+        int bodyLength() {
+            return HEADER_SIZE - 8 + room.length + payload.length;
+        }
+    }
+
+    private static final class Segment {
+        final long baseOffset;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // 写线程独占的视图
+        private final ByteBuffer writeView;
+        private final CRC32 crc = new CRC32();
+        int writePosition;
+        private long writeOffset;
+        private long writeTimestamp;
+        // 对回放可见的位置，写线程在写完（并 force）一批之后更新
+        volatile int committedPosition;
+        volatile long lastOffset;
+        volatile long lastTimestamp;
+        // 稀疏索引，由 this 的锁保护
+        private long[] indexOffsets = new long[64];
+        private long[] indexTimestamps = new long[64];
+        private int[] indexPositions = new int[64];
+        private int indexSize;
+        private int lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+        private Segment(long baseOffset, FileChannel channel, int segmentBytes) throws IOException {
+            this.baseOffset = baseOffset;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            this.writeView = buffer.duplicate();
+        }
+
+        static Segment create(Path file, long baseOffset, int segmentBytes) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(baseOffset, channel, segmentBytes);
+        }
+
+        static Segment open(Path file, long baseOffset, int segmentBytes) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int size = (int) Math.max(channel.size(), segmentBytes);
+            return new Segment(baseOffset, channel, size);
+        }
+
+        void write(Record record) {
+            int start = writePosition;
+            int bodyLength = record.bodyLength();
+            writeView.position(start + 8);
+            writeView.putLong(record.offset);
+            writeView.putLong(record.timestamp);
+            writeView.putShort((short) record.room.length);
+            writeView.put(record.room);
+            writeView.put(record.payload);
+
+            ByteBuffer body = writeView.duplicate();
+            body.position(start + 8).limit(start + 8 + bodyLength);
+            crc.reset();
+            crc.update(body);
+            writeView.putInt(start + 4, (int) crc.getValue());
+            writeView.putInt(start, bodyLength);
+
+            writePosition = start + 8 + bodyLength;
+            writeOffset = record.offset;
+            writeTimestamp = record.timestamp;
+            if (start - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                index(record.offset, record.timestamp, start);
+            }
+        }
+
+        void commit() {
+            lastOffset = writeOffset;
+            lastTimestamp = writeTimestamp;
+            committedPosition = writePosition;
+        }
+
+        // 启动时扫描段内容，找到最后一条完整记录并重建索引
+        void recover() {
+            int position = 0;
+            int limit = buffer.capacity();
+            while (position + 8 <= limit) {
+                int bodyLength = buffer.getInt(position);
+                if (bodyLength < HEADER_SIZE - 8 || position + 8 + bodyLength > limit) {
+                    break;
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.position(position + 8).limit(position + 8 + bodyLength);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    logger.warning("Chat log segment " + baseOffset + " has a torn record at " + position + ", truncating");
+                    break;
+                }
+                writeOffset = buffer.getLong(position + 8);
+                writeTimestamp = buffer.getLong(position + 16);
+                if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                    index(writeOffset, writeTimestamp, position);
+                }
+                position += 8 + bodyLength;
+            }
+            // 清掉半条记录留下的内容，后续追加从这里开始
+            for (int i = position; i < Math.min(limit, position + 8); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            writePosition = position;
+            if (position > 0) {
+                commit();
+            } else {
+                writeOffset = baseOffset - 1;
+                lastOffset = baseOffset - 1;
+            }
+        }
+
+        synchronized void index(long offset, long timestamp, int position) {
+            if (indexSize == indexPositions.length) {
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexOffsets[indexSize] = offset;
+            indexTimestamps[indexSize] = timestamp;
+            indexPositions[indexSize] = position;
+            indexSize++;
+            lastIndexedPosition = position;
+        }
+
+        // 最后一个 offset <= target 的索引项位置
+        synchronized int floorPositionByOffset(long target) {
+            int lo = 0;
+            int hi = indexSize - 1;
+            int position = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexOffsets[mid] <= target) {
+                    position = indexPositions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return position;
+        }
+
+        // 最后一个 timestamp < target 的索引项位置，时间戳相同的记录可能跨越多个索引项
+        synchronized int floorPositionByTimestamp(long target) {
+            int lo = 0;
+            int hi = indexSize - 1;
+            int position = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (indexTimestamps[mid] < target) {
+                    position = indexPositions[mid];
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * 顺序读取某个聊天室的已提交记录。不是线程安全的，每个回放流各用一个。
+     */
+    final class Cursor {
+        private final byte[] room;
+        private final long fromOffset;
+        private final long fromTimestamp;
+        private int segmentIndex;
+        private ByteBuffer view;
+        private Segment segment;
+        private int position;
+        private long offset;
+        private ByteBuffer payload;
+
+        private Cursor(String room, long fromOffset, long fromTimestamp, int segmentIndex, int position) {
+            this.room = room.getBytes(StandardCharsets.UTF_8);
+            this.fromOffset = fromOffset;
+            this.fromTimestamp = fromTimestamp;
+            this.segmentIndex = segmentIndex;
+            this.position = position;
+            if (segmentIndex < segments.size()) {
+                this.segment = segments.get(segmentIndex);
+                this.view = segment.buffer.duplicate();
+            }
+        }
+
+        /** 移动到下一条匹配的记录，没有更多已提交记录时返回 false */
+        boolean next() {
+            while (segment != null) {
+                int limit = segment.committedPosition;
+                while (position < limit) {
+                    int start = position;
+                    int bodyLength = view.getInt(start);
+                    position = start + 8 + bodyLength;
+                    long recordOffset = view.getLong(start + 8);
+                    long recordTimestamp = view.getLong(start + 16);
+                    if (recordOffset < fromOffset || recordTimestamp < fromTimestamp) {
+                        continue;
+                    }
+                    int roomLength = view.getShort(start + 24) & 0xFFFF;
+                    if (!roomMatches(start + HEADER_SIZE, roomLength)) {
+                        continue;
+                    }
+                    int payloadStart = start + HEADER_SIZE + roomLength;
+                    ByteBuffer slice = view.duplicate();
+                    slice.limit(position).position(payloadStart);
+                    payload = slice.slice();
+                    offset = recordOffset;
+                    return true;
+                }
+                // 当前段已经读完；只有后面已经有新段时当前段才不会再增长。
+                // 写线程先提交旧段再追加新段，所以看到新段之后要重新检查一次旧段的提交位置
+                boolean hasNextSegment = segmentIndex + 1 < segments.size();
+                if (position < segment.committedPosition) {
+                    continue;
+                }
+                if (!hasNextSegment) {
+                    return false;
+                }
+                segment = segments.get(++segmentIndex);
+                view = segment.buffer.duplicate();
+                position = 0;
+            }
+            // 打开游标时日志还是空的
+            if (!segments.isEmpty()) {
+                segmentIndex = 0;
+                segment = segments.get(0);
+                view = segment.buffer.duplicate();
+                position = 0;
+                return next();
+            }
+            return false;
+        }
+
+        long offset() {
+            return offset;
+        }
+
+        /** 当前记录的 ChatMessage 编码，直接指向映射区 */
+        ByteBuffer payload() {
+            return payload;
+        }
+
+        private boolean roomMatches(int start, int length) {
+            if (length != room.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (view.get(start + i) != room[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
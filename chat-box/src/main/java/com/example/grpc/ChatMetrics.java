@@ -0,0 +1,173 @@
+package com.example.grpc;
+
+import com.google.protobuf.MessageLite;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端或客户端的运行指标：活跃流数、收发的 gRPC 消息数和字节数、每条消息的处理耗时、
+ * TLS 握手耗时以及会话恢复的命中率。
+ * 计数器使用 LongAdder，耗时使用 HdrHistogram，热路径上只有几次无竞争的累加。
+ * 批量模式下一个 ChatBatch 帧按一条消息计数。
+ */
+final class ChatMetrics {
+    private static final long MAX_MICROS = TimeUnit.SECONDS.toMicros(60);
+
+    private final LongAdder activeStreams = new LongAdder();
+    private final LongAdder totalStreams = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final Histogram processingMicros = new ConcurrentHistogram(1, MAX_MICROS, 3);
+    private final Histogram handshakeMicros = new ConcurrentHistogram(1, MAX_MICROS, 3);
+    private final LongAdder tlsConnections = new LongAdder();
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final Histogram certVerifyMicros = new ConcurrentHistogram(1, MAX_MICROS, 3);
+
+    void streamStarted() {
+        activeStreams.increment();
+        totalStreams.increment();
+    }
+
+    void streamClosed() {
+        activeStreams.decrement();
+    }
+
+    void inbound(Object message) {
+        messagesIn.increment();
+        bytesIn.add(sizeOf(message));
+    }
+
+    void outbound(Object message) {
+        messagesOut.increment();
+        bytesOut.add(sizeOf(message));
+    }
+
+    void recordProcessing(long nanos) {
+        record(processingMicros, nanos);
+    }
+
+    void recordHandshake(long nanos) {
+        record(handshakeMicros, nanos);
+    }
+
+    /** 一条 TLS 连接就绪，不管是完整握手还是会话恢复 */
+    void tlsConnectionReady() {
+        tlsConnections.increment();
+    }
+
+    /** 校验了一次对端证书链，也就是一次完整握手 */
+    void recordCertificateVerification(long nanos) {
+        fullHandshakes.increment();
+        record(certVerifyMicros, nanos);
+    }
+
+    long fullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    /** 没有校验证书就就绪的连接数，即会话恢复次数 */
+    long resumedHandshakes() {
+        return Math.max(0, tlsConnections.sum() - fullHandshakes.sum());
+    }
+
+    double resumptionRate() {
+        long connections = tlsConnections.sum();
+        return connections == 0 ? 0 : (double) resumedHandshakes() / connections;
+    }
+
+    long activeStreams() {
+        return activeStreams.sum();
+    }
+
+    long messagesIn() {
+        return messagesIn.sum();
+    }
+
+    long messagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * 一行摘要，用于定期日志。
+     */
+    String summary() {
+        return String.format(Locale.ROOT, "streams=%d/%d in=%d (%d B) out=%d (%d B) processing p50=%dus p99=%dus max=%dus"
+                        + " handshakes=%d p50=%dus p99=%dus tls full=%d resumed=%d (%.1f%%)",
+                activeStreams.sum(), totalStreams.sum(), messagesIn.sum(), bytesIn.sum(), messagesOut.sum(), bytesOut.sum(),
+                processingMicros.getValueAtPercentile(50), processingMicros.getValueAtPercentile(99),
+                processingMicros.getMaxValue(), handshakeMicros.getTotalCount(),
+                handshakeMicros.getValueAtPercentile(50), handshakeMicros.getValueAtPercentile(99),
+                fullHandshakes.sum(), resumedHandshakes(), resumptionRate() * 100);
+    }
+
+    /**
+     * 以 JSON 输出全部指标。rooms 和 admission 不为空时附带发送队列的深度和准入控制的状态（仅服务端）。
+     */
+    String toJson(ChatRoomRegistry rooms, AdmissionControl admission) {
+        StringBuilder json = new StringBuilder(512);
+        json.append("{\n");
+        json.append("  \"activeStreams\": ").append(activeStreams.sum()).append(",\n");
+        json.append("  \"totalStreams\": ").append(totalStreams.sum()).append(",\n");
+        json.append("  \"messagesIn\": ").append(messagesIn.sum()).append(",\n");
+        json.append("  \"messagesOut\": ").append(messagesOut.sum()).append(",\n");
+        json.append("  \"bytesIn\": ").append(bytesIn.sum()).append(",\n");
+        json.append("  \"bytesOut\": ").append(bytesOut.sum()).append(",\n");
+        json.append("  \"processingMicros\": ").append(histogramJson(processingMicros)).append(",\n");
+        json.append("  \"tlsHandshakeMicros\": ").append(histogramJson(handshakeMicros)).append(",\n");
+        json.append("  \"tlsCertVerifyMicros\": ").append(histogramJson(certVerifyMicros)).append(",\n");
+        json.append(String.format(Locale.ROOT,
+                "  \"tlsSessions\": {\"connections\": %d, \"fullHandshakes\": %d, \"resumed\": %d, \"resumptionRate\": %.4f},\n",
+                tlsConnections.sum(), fullHandshakes.sum(), resumedHandshakes(), resumptionRate()));
+        // 对比不同执行模式下的内存和线程占用
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        json.append("  \"jvm\": {\"heapUsed\": ").append(heap.getUsed())
+                .append(", \"heapCommitted\": ").append(heap.getCommitted())
+                .append(", \"threads\": ").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('}');
+        if (rooms != null) {
+            json.append(",\n  \"outboundQueues\": {\"rooms\": ").append(rooms.roomCount())
+                    .append(", \"subscribers\": ").append(rooms.subscriberCount())
+                    .append(", \"queuedMessages\": ").append(rooms.queuedMessages())
+                    .append(", \"maxDepth\": ").append(rooms.maxQueueDepth()).append('}');
+        }
+        if (admission != null) {
+            json.append(",\n  \"admission\": ").append(admission.toJson());
+        }
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static String histogramJson(Histogram histogram) {
+        return String.format(Locale.ROOT,
+                "{\"count\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d, \"mean\": %.1f}",
+                histogram.getTotalCount(), histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue(),
+                histogram.getMean());
+    }
+
+    private static void record(Histogram histogram, long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        histogram.recordValue(Math.max(1, Math.min(MAX_MICROS, micros)));
+    }
+
+    // 预编码帧直接取长度；protobuf 消息的 getSerializedSize 在解析或首次序列化后是缓存的
+    private static int sizeOf(Object message) {
+        if (message instanceof EncodedMessage) {
+            return ((EncodedMessage) message).size();
+        }
+        if (message instanceof PooledMessage) {
+            return ((PooledMessage<?>) message).size();
+        }
+        if (message instanceof MessageLite) {
+            return ((MessageLite) message).getSerializedSize();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.grpc;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按聊天室分组的订阅者注册表。
+ * 每个聊天室是一个并发 Set，加入/离开只影响对应的房间，广播时无锁遍历，不存在全局锁。
+ */
+final class ChatRoomRegistry {
+    static final String DEFAULT_ROOM = "lobby";
+
+    private final ConcurrentHashMap<String, Set<ChatSubscriber>> rooms = new ConcurrentHashMap<>();
+    private volatile RoomListener listener;
+
+    /**
+     * 聊天室在本节点出现第一个订阅者、或者最后一个订阅者离开时的回调。
+     * 在对这个房间的原子更新内调用，同一个房间的两种事件严格交替，实现里不能再访问注册表。
+     */
+    interface RoomListener {
+        void roomOpened(String room);
+
+        void roomClosed(String room);
+    }
+
+    static String roomOf(ChatMessage message) {
+        String room = message.getRoom();
+        return room.isEmpty() ? DEFAULT_ROOM : room;
+    }
+
+    /**
+     * 把订阅者移动到指定聊天室，如果之前在别的房间则先离开。
+     */
+    void join(ChatSubscriber subscriber, String room) {
+        String previous = subscriber.room();
+        if (room.equals(previous)) {
+            return;
+        }
+        if (previous != null) {
+            remove(previous, subscriber);
+        }
+        subscriber.room(room);
+        // compute 保证与 leave 中删除空房间的操作互斥，不会把订阅者加进一个刚被移除的 Set
+        rooms.compute(room, (key, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+                RoomListener current = listener;
+                if (current != null) {
+                    current.roomOpened(key);
+                }
+            }
+            members.add(subscriber);
+            return members;
+        });
+    }
+
+    void leave(ChatSubscriber subscriber) {
+        String room = subscriber.room();
+        if (room != null) {
+            remove(room, subscriber);
+            subscriber.room(null);
+        }
+    }
+
+    /**
+     * 把已经序列化好的消息发给房间内所有订阅者，返回投递的订阅者数量。
+     * 在调用线程上逐个放进成员的发送队列，流可写时当场发送。
+     */
+    int broadcast(String room, EncodedMessage frame) {
+        Set<ChatSubscriber> members = rooms.get(room);
+        if (members == null) {
+            return 0;
+        }
+        int delivered = 0;
+        for (ChatSubscriber member : members) {
+            if (member.send(frame)) {
+                delivered++;
+            } else {
+                // 流已经结束（例如慢客户端被断开），它自己的入站回调不一定还会来，这里顺手移出房间
+                leave(member);
+            }
+        }
+        return delivered;
+    }
+
+    void setRoomListener(RoomListener listener) {
+        this.listener = listener;
+    }
+
+    /** 当前有订阅者的聊天室，弱一致的视图 */
+    Set<String> roomNames() {
+        return Collections.unmodifiableSet(rooms.keySet());
+    }
+
+    Set<ChatSubscriber> members(String room) {
+        Set<ChatSubscriber> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+
+    int subscriberCount() {
+        int count = 0;
+        for (Set<ChatSubscriber> members : rooms.values()) {
+            count += members.size();
+        }
+        return count;
+    }
+
+    /** 所有订阅流发送队列里排队的消息总数 */
+    long queuedMessages() {
+        long total = 0;
+        for (Set<ChatSubscriber> members : rooms.values()) {
+            for (ChatSubscriber member : members) {
+                total += member.depth();
+            }
+        }
+        return total;
+    }
+
+    /** 单个订阅流发送队列的最大深度 */
+    int maxQueueDepth() {
+        int max = 0;
+        for (Set<ChatSubscriber> members : rooms.values()) {
+            for (ChatSubscriber member : members) {
+                max = Math.max(max, member.depth());
+            }
+        }
+        return max;
+    }
+
+    private void remove(String room, ChatSubscriber subscriber) {
+        rooms.computeIfPresent(room, (key, members) -> {
+            members.remove(subscriber);
+            if (!members.isEmpty()) {
+                return members;
+            }
+            RoomListener current = listener;
+            if (current != null) {
+                current.roomClosed(key);
+            }
+            return null;
+        });
+    }
+}
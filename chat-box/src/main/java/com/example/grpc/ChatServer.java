@@ -1,9 +1,10 @@
 package com.example.grpc;
 
 import io.grpc.Server;
+import io.grpc.ServerInterceptors;
 import io.grpc.netty.NettyServerBuilder;
-import io.grpc.stub.StreamObserver;
 
+import io.netty.channel.EventLoopGroup;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslProvider;
@@ -11,34 +12,42 @@ import io.netty.handler.ssl.ApplicationProtocolConfig;
 import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.ClientAuth;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.security.KeyStore;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.TrustManagerFactory;
 
 public class ChatServer {
     private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
     private Server server;
     private final int port;
+    private final ChatServerConfig config;
+    private ScheduledExecutorService reporter;
+    private ChatLog chatLog;
+    private EventLoopGroup[] eventLoopGroups;
+    private final ChatMetrics metrics = new ChatMetrics();
+    private StatsEndpoint statsEndpoint;
+    private ChatCluster cluster;
+    private ExecutorService handlerPool;
+    private AttachmentServiceImpl attachments;
+    private AdmissionControl admission;
 
     public ChatServer(int port) {
+        this(port, new ChatServerConfig(port));
+    }
+
+    public ChatServer(int port, ChatServerConfig config) {
         this.port = port;
+        this.config = config;
     }
 
     public void start() throws Exception {
-        // 加载服务端证书、密钥以及CA证书
-        InputStream serverCertIs = getClass().getClassLoader().getResourceAsStream("certs/server.crt");
-        InputStream serverKeyIs = getClass().getClassLoader().getResourceAsStream("certs/server.key");
-        InputStream caIs = getClass().getClassLoader().getResourceAsStream("certs/ca.crt");
-
-        if (serverCertIs == null || serverKeyIs == null || caIs == null) {
-            throw new FileNotFoundException("必要的证书文件(.crt, .key, ca.crt)未找到，请先运行 generate_certs.sh 脚本。");
-        }
+        // 加载服务端证书、密钥以及CA证书，配置了证书目录时定期检查更新
+        TlsCredentials credentials = TlsCredentials.load(config.transport.tlsDir, "server");
+        credentials.onVerify(metrics::recordCertificateVerification);
 
         // 配置ALPN
         ApplicationProtocolConfig alpnConfig = new ApplicationProtocolConfig(
@@ -48,19 +57,88 @@ public class ChatServer {
             ApplicationProtocolNames.HTTP_2,
             ApplicationProtocolNames.HTTP_1_1);
 
-        SslContext sslContext = SslContextBuilder.forServer(serverCertIs, serverKeyIs)
-                .sslProvider(SslProvider.JDK)
-                .trustManager(caIs) // 使用CA证书来验证客户端
+        SslProvider sslProvider = config.transport.resolveSslProvider();
+        SslContext sslContext = SslContextBuilder.forServer(credentials.keyManagerFactory(sslProvider))
+                .sslProvider(sslProvider)
+                .trustManager(credentials.trustManager()) // 使用CA证书来验证客户端
                 .clientAuth(ClientAuth.REQUIRE) // 强制要求客户端认证
                 .applicationProtocolConfig(alpnConfig)
+                .sessionCacheSize(config.transport.tlsSessionCacheSize)
+                .sessionTimeout(config.transport.tlsSessionTimeoutSeconds)
                 .build();
+        credentials.watch(config.transport.tlsReloadSeconds);
+
+        if (!config.logDir.isEmpty()) {
+            chatLog = ChatLog.open(Paths.get(config.logDir), config.logSegmentBytes, config.logFsync);
+        }
+        if (!config.clusterPeers.isEmpty()) {
+            cluster = new ChatCluster(config, port);
+        }
+        NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+                .maxConcurrentCallsPerConnection(config.maxStreamsPerConnection)
+                // 客户端每 60 秒发一次 keepalive，没有调用时也发，默认的 5 分钟下限会让服务端以 too_many_pings 断开连接
+                .permitKeepAliveTime(30, TimeUnit.SECONDS)
+                .permitKeepAliveWithoutCalls(true);
+        if (config.maxConnectionIdleSeconds > 0) {
+            builder.maxConnectionIdle(config.maxConnectionIdleSeconds, TimeUnit.SECONDS);
+        }
+        if (config.maxConnectionAgeSeconds > 0) {
+            builder.maxConnectionAge(config.maxConnectionAgeSeconds, TimeUnit.SECONDS)
+                    .maxConnectionAgeGrace(config.maxConnectionAgeGraceSeconds, TimeUnit.SECONDS);
+        }
+        handlerPool = config.executorMode.configure(builder, config.executorThreads);
+        admission = new AdmissionControl(config);
+        admission.start();
+        ChatServiceImpl service = new ChatServiceImpl(config, chatLog, cluster, handlerPool, admission, metrics);
+        MetricsServerInterceptor metricsInterceptor = new MetricsServerInterceptor(metrics);
+        builder.addService(ServerInterceptors.intercept(service, admission.interceptor(), metricsInterceptor))
+                .addTransportFilter(metricsInterceptor.transportFilter())
+                .sslContext(sslContext);
+        if (!config.attachmentDir.isEmpty()) {
+            attachments = new AttachmentServiceImpl(config, service);
+            builder.addService(ServerInterceptors.intercept(attachments, admission.interceptor(), metricsInterceptor));
+        }
+        if (cluster != null) {
+            // 对端节点已经通过证书认证，不按用户限速，但堆压力过大时同样拒绝新的转发流和转发消息
+            builder.addService(ServerInterceptors.intercept(cluster.service(), admission.interceptor(), metricsInterceptor));
+            cluster.start(service, admission);
+        }
+        eventLoopGroups = config.transport.configure(builder);
+        server = builder.build().start();
+        logger.info("Server started with TLS, listening on " + port + ", transport " + config.transport.describe()
+                + ", TLS session cache " + config.transport.tlsSessionCacheSize + " / " + config.transport.tlsSessionTimeoutSeconds + "s"
+                + ", certificates from " + config.transport.tlsDir);
+        logger.info("Outbound queue capacity " + config.outboundQueueCapacity + ", slow consumer policy " + config.slowConsumerPolicy
+                + ", outbound batch size " + config.outboundBatchSize + ", executor " + config.executorMode
+                + (config.executorMode == ExecutorMode.BOUNDED ? " (" + config.executorThreads + " threads)" : ""));
+        logger.info("Admission: " + config.maxStreamsPerConnection + " streams per connection, user rate " + config.userRatePerSecond
+                + "/s (burst " + config.userBurst + ", " + config.maxTrackedUsers + " users), in-flight " + config.maxInFlightMessages + " messages / "
+                + config.maxInFlightBytes + " bytes, shed at " + config.heapShedFraction + " of old generation");
+        if (config.statsPort >= 0) {
+            statsEndpoint = StatsEndpoint.start(config.statsPort, () -> metrics.toJson(service.rooms(), admission));
+            logger.info("Stats endpoint: http://127.0.0.1:" + statsEndpoint.port() + "/stats");
+        }
 
-        server = NettyServerBuilder.forPort(port)
-                .addService(new ChatServiceImpl())
-                .sslContext(sslContext)
-                .build()
-                .start();
-        logger.info("Server started with TLS, listening on " + port);
+        // 定期输出流量指标和发送队列深度，方便观察大量流同时打开时的内存占用
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "chat-queue-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            if (metrics.activeStreams() > 0) {
+                logger.info("Metrics: " + metrics.summary());
+            }
+            if (cluster != null) {
+                logger.info("Cluster: " + cluster.describe());
+            }
+            ChatRoomRegistry rooms = service.rooms();
+            long queued = rooms.queuedMessages();
+            if (queued > 0) {
+                logger.info("Outbound queues: " + rooms.subscriberCount() + " streams, " + queued
+                        + " queued messages, max depth " + rooms.maxQueueDepth());
+            }
+        }, 60, 60, TimeUnit.SECONDS);
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
@@ -75,9 +153,43 @@ public class ChatServer {
     }
 
     public void stop() throws InterruptedException {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        if (statsEndpoint != null) {
+            statsEndpoint.stop();
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        if (handlerPool != null) {
+            handlerPool.shutdown();
+        }
+        if (attachments != null) {
+            attachments.close();
+        }
+        if (admission != null) {
+            admission.close();
+        }
+        if (eventLoopGroups != null) {
+            for (EventLoopGroup group : eventLoopGroups) {
+                group.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            }
+        }
+        if (chatLog != null) {
+            try {
+                chatLog.close();
+            } catch (IOException e) {
+                logger.warning("关闭聊天日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    ChatMetrics metrics() {
+        return metrics;
     }
 
     public void blockUntilShutdown() throws InterruptedException {
@@ -86,32 +198,10 @@ public class ChatServer {
         }
     }
 
-    private static class ChatServiceImpl extends ChatServiceGrpc.ChatServiceImplBase {
-        @Override
-        public StreamObserver<ChatMessage> chat(StreamObserver<ChatMessage> responseObserver) {
-            return new StreamObserver<ChatMessage>() {
-                @Override
-                public void onNext(ChatMessage message) {
-                    logger.info("Received message from " + message.getUserId() + ": " + message.getContent());
-                    // 回显消息给客户端
-                    responseObserver.onNext(message);
-                }
-
-                @Override
-                public void onError(Throwable t) {
-                    logger.warning("Chat error: " + t.getMessage());
-                }
-
-                @Override
-                public void onCompleted() {
-                    responseObserver.onCompleted();
-                }
-            };
-        }
-    }
-
     public static void main(String[] args) throws Exception {
-        ChatServer server = new ChatServer(50051);
+        // 用法: ChatServer [port]，本机起多个集群节点时每个节点用不同的端口
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : ChatServerConfig.DEFAULT_PORT;
+        ChatServer server = new ChatServer(port);
         server.start();
         server.blockUntilShutdown();
     }
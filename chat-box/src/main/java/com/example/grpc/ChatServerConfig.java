@@ -0,0 +1,89 @@
+package com.example.grpc;
+
+/**
+ * ChatServer 的可调参数，默认值可以通过 -D 系统属性覆盖。
+ * 日志目录、附件目录和统计端口的默认值跟服务端口相关，本机用不同端口启动多个节点时互不冲突。
+ */
+public class ChatServerConfig {
+    static final int DEFAULT_PORT = 50051;
+    // 统计接口默认使用服务端口加上这个偏移
+    private static final int STATS_PORT_OFFSET = 1000;
+
+    /** 每个流最多排队的待发送消息数 (chat.outbound.capacity) */
+    public int outboundQueueCapacity = Integer.getInteger("chat.outbound.capacity", 1024);
+    /** 发送队列写满时的处理策略 (chat.outbound.policy) */
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", SlowConsumerPolicy.DROP_OLDEST.name()).toUpperCase());
+    /** ChatBatched 流每帧最多合并的消息数 (chat.outbound.batch) */
+    public int outboundBatchSize = Integer.getInteger("chat.outbound.batch", 256);
+    /** 消息日志目录，默认 {@code chat-log-<端口>}，设为空字符串则不持久化 (chat.log.dir) */
+    public String logDir;
+    /** 每个日志段文件的大小 (chat.log.segment.bytes) */
+    public int logSegmentBytes = Integer.getInteger("chat.log.segment.bytes", 64 * 1024 * 1024);
+    /** 每批写入后是否 force 到磁盘 (chat.log.fsync) */
+    public boolean logFsync = Boolean.parseBoolean(System.getProperty("chat.log.fsync", "true"));
+    /** 本机统计接口 (GET /stats) 的端口，默认服务端口 + 1000，负数表示不启动 (chat.stats.port) */
+    public int statsPort;
+    /** 收到消息的日志最多每隔多少毫秒输出一条，0 表示每条都输出 (chat.message.log.interval) */
+    public long messageLogIntervalMillis = Long.getLong("chat.message.log.interval", 1000);
+    /** 集群所有节点的 host:port，逗号分隔，为空时单机运行 (chat.cluster.peers) */
+    public String clusterPeers = System.getProperty("chat.cluster.peers", "");
+    /** 本节点在 chat.cluster.peers 里的 ID，为空时使用 localhost:端口 (chat.cluster.self) */
+    public String clusterSelf = System.getProperty("chat.cluster.self", "");
+    /** 每个节点在一致性哈希环上的虚拟节点数 (chat.cluster.vnodes) */
+    public int clusterVirtualNodes = Integer.getInteger("chat.cluster.vnodes", 128);
+    /** 节点间转发每批最多合并的消息数 (chat.cluster.batch) */
+    public int clusterBatchSize = Integer.getInteger("chat.cluster.batch", 256);
+    /** 节点间转发攒批的最长等待时间，毫秒 (chat.cluster.linger) */
+    public long clusterLingerMillis = Long.getLong("chat.cluster.linger", 2);
+    /** 允许调用集群转发服务的对端证书 CN，逗号分隔；节点之间用证书目录里的 node.crt 连接 (chat.cluster.peer.names) */
+    public String clusterPeerNames = System.getProperty("chat.cluster.peer.names", "chat-node");
+    /** 处理器的执行方式：default、direct、bounded 或 virtual (chat.executor) */
+    public ExecutorMode executorMode = ExecutorMode.valueOf(System.getProperty("chat.executor", ExecutorMode.DEFAULT.name()).toUpperCase());
+    /** bounded 模式（以及 virtual 不可用时）的线程数 (chat.executor.threads) */
+    public int executorThreads = Integer.getInteger("chat.executor.threads", Runtime.getRuntime().availableProcessors() * 4);
+    /** 附件存放目录，默认 {@code attachments-<端口>}，设为空字符串则不提供附件服务 (chat.attachment.dir) */
+    public String attachmentDir;
+    /** 单个附件的最大字节数 (chat.attachment.max.bytes) */
+    public long attachmentMaxBytes = Long.getLong("chat.attachment.max.bytes", 256L * 1024 * 1024);
+    /** 读写附件文件的线程数 (chat.attachment.io.threads) */
+    public int attachmentIoThreads = Integer.getInteger("chat.attachment.io.threads", 2);
+    /** 每个连接最多同时打开的流数，超出的流由 HTTP/2 拒绝 (chat.max.streams.per.connection) */
+    public int maxStreamsPerConnection = Integer.getInteger("chat.max.streams.per.connection", 1000);
+    /** 连接上没有调用超过这么多秒就关闭，0 表示不限制 (chat.connection.max.idle) */
+    public long maxConnectionIdleSeconds = Long.getLong("chat.connection.max.idle", 600);
+    /** 连接存活超过这么多秒就要求客户端重连，0 表示不限制 (chat.connection.max.age) */
+    public long maxConnectionAgeSeconds = Long.getLong("chat.connection.max.age", 0);
+    /** 达到存活时间后留给未完成调用的秒数，之后强制关闭 (chat.connection.max.age.grace) */
+    public long maxConnectionAgeGraceSeconds = Long.getLong("chat.connection.max.age.grace", 30);
+    /** 每个 user_id 每秒允许发送的消息数，0 表示不限速 (chat.user.rate) */
+    public double userRatePerSecond = Double.parseDouble(System.getProperty("chat.user.rate", "1000"));
+    /** 每个 user_id 允许的突发消息数 (chat.user.burst) */
+    public double userBurst = Double.parseDouble(System.getProperty("chat.user.burst", "2000"));
+    /** 同时限速的用户数上限，满了以后新出现的用户被拒绝，直到有用户空闲下来 (chat.user.max.tracked) */
+    public int maxTrackedUsers = Integer.getInteger("chat.user.max.tracked", 100000);
+    /** 全局最多同时在处理的入站消息数，批量帧按批内的消息条数计 (chat.inflight.messages) */
+    public long maxInFlightMessages = Long.getLong("chat.inflight.messages", 100_000);
+    /** 全局最多同时在处理的入站消息字节数，默认最大堆的 1/8 (chat.inflight.bytes) */
+    public long maxInFlightBytes = Long.getLong("chat.inflight.bytes", Runtime.getRuntime().maxMemory() / 8);
+    /** GC 之后老年代占用超过最大值的这个比例时拒绝新的调用和消息，0 表示不检查 (chat.shed.heap.fraction) */
+    public double heapShedFraction = Double.parseDouble(System.getProperty("chat.shed.heap.fraction", "0.85"));
+    /** 拒绝之后，老年代当前占用降到最大值的这个比例以下时恢复，应小于 heapShedFraction (chat.shed.heap.recover.fraction) */
+    public double heapRecoverFraction = Double.parseDouble(System.getProperty("chat.shed.heap.recover.fraction", "0.7"));
+    /** 事件循环和 TLS 实现 */
+    public TransportOptions transport = new TransportOptions();
+
+    public ChatServerConfig() {
+        this(DEFAULT_PORT);
+    }
+
+    /**
+     * @param port 服务端口，用来生成本节点的默认日志目录、附件目录和统计端口
+     */
+    public ChatServerConfig(int port) {
+        logDir = System.getProperty("chat.log.dir", "chat-log-" + port);
+        attachmentDir = System.getProperty("chat.attachment.dir", "attachments-" + port);
+        int defaultStatsPort = port + STATS_PORT_OFFSET <= 0xFFFF ? port + STATS_PORT_OFFSET : -1;
+        statsPort = Integer.getInteger("chat.stats.port", defaultStatsPort);
+    }
+}
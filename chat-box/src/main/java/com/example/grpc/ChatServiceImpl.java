@@ -0,0 +1,494 @@
+package com.example.grpc;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import io.grpc.BindableService;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 聊天服务实现：把收到的消息广播给同一聊天室的所有订阅流。
+ * 响应使用预先序列化好的消息帧，广播时每条消息只编码一次。
+ * 开启消息日志时每条消息先追加到 {@link ChatLog}，日志提交之后才广播，客户端可以通过 Replay 补齐历史消息。
+ * 集群模式下只有聊天室的 owner 定序和写日志，其他节点把消息转发过去，见 {@link ChatCluster}。
+ *
+ * <p>流通过发送的消息加入聊天室：普通消息让发送者加入消息所属的房间并广播，{@code join} 消息只加入不广播，
+ * 用来只收不发。广播在调用方的线程上同步进行，对每个成员调用 {@link ChatSubscriber#send}：
+ * 消息只是进入成员的发送队列，成员的流可写时当场调用 onNext。没有开启日志时这个线程是发布消息的线程
+ * （DIRECT 模式下是事件循环，否则是处理器线程），它也可能顺带广播同一分段里别人排队的消息；
+ * 开启日志时是日志提交之后的线程（有处理器线程池时在池里，否则是日志写线程）。
+ * 房间成员很多时广播的开销都落在这个线程上。
+ */
+final class ChatServiceImpl implements BindableService {
+    private static final Logger logger = Logger.getLogger(ChatServiceImpl.class.getName());
+    private static final int ROOM_STRIPES = 64;
+
+    private final ChatRoomRegistry rooms = new ChatRoomRegistry();
+    private final ChatServerConfig config;
+    private final ChatLog log;
+    private final ChatCluster cluster;
+    // 处理器线程池，为 null 时直接在 gRPC 的回调线程上处理，见 ExecutorMode
+    private final Executor handlerPool;
+    private final LogSampler messageLogSampler;
+    private final AdmissionControl admission;
+    private final ChatMetrics metrics;
+    // 按聊天室分段，让同一个房间的写日志和广播顺序一致，不同房间互不影响
+    private final RoomStripe[] stripes = new RoomStripe[ROOM_STRIPES];
+    // 日志提交后广播已提交的消息，多次提交合并成一次
+    private final AtomicBoolean commitDrainScheduled = new AtomicBoolean();
+
+    ChatServiceImpl(ChatServerConfig config, ChatLog log, ChatCluster cluster, Executor handlerPool, AdmissionControl admission,
+                    ChatMetrics metrics) {
+        this.config = config;
+        this.log = log;
+        this.cluster = cluster;
+        this.handlerPool = handlerPool;
+        this.admission = admission;
+        this.metrics = metrics;
+        this.messageLogSampler = new LogSampler(config.messageLogIntervalMillis);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new RoomStripe();
+        }
+        if (log != null) {
+            log.onCommit(this::committed);
+        }
+    }
+
+    ChatRoomRegistry rooms() {
+        return rooms;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        MethodDescriptor<ChatMessage, EncodedMessage> chatMethod = ChatServiceGrpc.getChatMethod()
+                .toBuilder(ProtoUtils.marshaller(ChatMessage.getDefaultInstance()), EncodedMessage.MARSHALLER)
+                .build();
+        MethodDescriptor<ChatBatch, EncodedMessage> chatBatchedMethod = ChatServiceGrpc.getChatBatchedMethod()
+                .toBuilder(ProtoUtils.marshaller(ChatBatch.getDefaultInstance()), EncodedMessage.MARSHALLER)
+                .build();
+        MethodDescriptor<ReplayRequest, EncodedMessage> replayMethod = ChatServiceGrpc.getReplayMethod()
+                .toBuilder(ProtoUtils.marshaller(ReplayRequest.getDefaultInstance()), EncodedMessage.MARSHALLER)
+                .build();
+        return ServerServiceDefinition.builder(ChatServiceGrpc.SERVICE_NAME)
+                .addMethod(chatMethod, ServerCalls.asyncBidiStreamingCall(this::chat))
+                .addMethod(chatBatchedMethod, ServerCalls.asyncBidiStreamingCall(this::chatBatched))
+                .addMethod(replayMethod, ServerCalls.asyncServerStreamingCall(this::replay))
+                .build();
+    }
+
+    private StreamObserver<ChatMessage> chat(StreamObserver<EncodedMessage> responseObserver) {
+        ServerCallStreamObserver<EncodedMessage> call = (ServerCallStreamObserver<EncodedMessage>) responseObserver;
+        ChatSubscriber subscriber = subscribe(call, 1);
+        return new InboundObserver<ChatMessage>(call, subscriber) {
+            @Override
+            void handle(ChatMessage message) {
+                publish(subscriber, message);
+            }
+        };
+    }
+
+    private StreamObserver<ChatBatch> chatBatched(StreamObserver<EncodedMessage> responseObserver) {
+        ServerCallStreamObserver<EncodedMessage> call = (ServerCallStreamObserver<EncodedMessage>) responseObserver;
+        ChatSubscriber subscriber = subscribe(call, config.outboundBatchSize);
+        return new InboundObserver<ChatBatch>(call, subscriber) {
+            @Override
+            void handle(ChatBatch batch) {
+                for (ChatMessage message : batch.getMessagesList()) {
+                    publish(subscriber, message);
+                }
+            }
+
+            @Override
+            int messageCount(ChatBatch batch) {
+                return batch.getMessagesCount();
+            }
+        };
+    }
+
+    private ChatSubscriber subscribe(ServerCallStreamObserver<EncodedMessage> call, int maxBatch) {
+        ChatSubscriber subscriber = new ChatSubscriber(call, config.outboundQueueCapacity, config.slowConsumerPolicy, maxBatch);
+        // 流重新变得可写时继续发送排队的消息
+        call.setOnReadyHandler(subscriber::drain);
+        return subscriber;
+    }
+
+    // 每个流一个，流内任务按顺序执行；没有处理器线程池时直接在调用线程上执行
+    private Executor streamExecutor() {
+        return handlerPool != null ? new SerializingExecutor(handlerPool) : Runnable::run;
+    }
+
+    private void publish(ChatSubscriber subscriber, ChatMessage message) {
+        Status limited = admission.admitUser(message.getUserId());
+        if (limited != null) {
+            throw limited.asRuntimeException();
+        }
+        // 发送者加入消息所属的聊天室；join 消息到此为止，不广播
+        rooms.join(subscriber, ChatRoomRegistry.roomOf(message));
+        if (message.getJoin()) {
+            return;
+        }
+        // 每条消息都打日志会让格式化和控制台 I/O 成为热点，这里按时间采样
+        if (logger.isLoggable(Level.INFO)) {
+            long skipped = messageLogSampler.sample();
+            if (skipped >= 0) {
+                logger.info("Received message from " + message.getUserId() + ": " + message.getContent()
+                        + (skipped > 0 ? " (省略了之前的 " + skipped + " 条)" : ""));
+            }
+        }
+        // 把消息广播给房间内所有成员（包括自己）
+        post(message);
+    }
+
+    /**
+     * 把消息发到它所属的聊天室，不要求发送者在这个房间里，例如上传完成后的附件通知。
+     */
+    void post(ChatMessage message) {
+        String room = ChatRoomRegistry.roomOf(message);
+        if (cluster != null && !cluster.owns(room)) {
+            // 本地订阅者（包括发送者自己）等 owner 定序后分发回来再收到
+            cluster.forward(room, message);
+            return;
+        }
+        deliverOwned(room, message);
+    }
+
+    /**
+     * 本节点是聊天室的 owner：写日志、投递给本地订阅者，并分发给有订阅的其他节点。
+     * 写不进日志时抛出 StatusRuntimeException：日志不可用为 UNAVAILABLE，待写队列已满为 RESOURCE_EXHAUSTED，
+     * 聊天室名或消息太大为 INVALID_ARGUMENT。
+     */
+    void deliverOwned(String room, ChatMessage message) {
+        // 锁内只分配 offset 和排队，append 不会阻塞；广播在锁外按排队顺序进行，并且要等日志提交到这条消息，
+        // 所以订阅者按 offset 顺序收到消息，收到的 offset 都已经在磁盘上，重连后从 offset + 1 回放不会漏
+        RoomStripe stripe = stripes[(room.hashCode() & 0x7fffffff) % stripes.length];
+        synchronized (stripe) {
+            Delivery delivery;
+            if (log != null) {
+                ChatLog.Record record;
+                try {
+                    record = log.append(room, message);
+                } catch (IllegalStateException e) {
+                    throw Status.UNAVAILABLE.withDescription("chat log unavailable").withCause(e).asRuntimeException();
+                } catch (IllegalArgumentException e) {
+                    // 聊天室名或消息太大，放不进日志
+                    throw Status.INVALID_ARGUMENT.withDescription(e.getMessage()).withCause(e).asRuntimeException();
+                }
+                if (record == null) {
+                    throw Status.RESOURCE_EXHAUSTED.withDescription("chat log is backed up").asRuntimeException();
+                }
+                delivery = new Delivery(room, message, record.offset, record.payload);
+            } else {
+                delivery = new Delivery(room, message, 0, null);
+            }
+            stripe.queue.addLast(delivery);
+        }
+        drain(stripe);
+    }
+
+    /**
+     * 日志写线程提交一批之后调用，把各分段里已经提交的消息广播出去。有处理器线程池时交给线程池，
+     * 否则直接在写线程上广播。日志写入失败时丢弃还没提交的消息，它们的 offset 不会再被提交。
+     */
+    private void committed() {
+        if (!commitDrainScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Runnable task = () -> {
+            commitDrainScheduled.set(false);
+            boolean failed = log.failed();
+            for (RoomStripe stripe : stripes) {
+                if (failed) {
+                    stripe.discardAfter(log.committedOffset());
+                }
+                drain(stripe);
+            }
+        };
+        if (handlerPool == null) {
+            task.run();
+            return;
+        }
+        try {
+            handlerPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            // 服务正在停止，线程池已经关闭
+            task.run();
+        }
+    }
+
+    /**
+     * 按排队顺序广播一个分段里的消息。同一时刻只有一个线程在广播，其他线程放进队列后直接返回，
+     * 由正在广播的线程顺带发出去；房间的订阅者很多时这个线程可能连续广播好几条别人的消息。
+     */
+    private void drain(RoomStripe stripe) {
+        do {
+            if (!stripe.draining.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Delivery delivery;
+                while ((delivery = stripe.poll(committedOffset())) != null) {
+                    deliver(delivery);
+                }
+            } finally {
+                stripe.draining.set(false);
+            }
+            // 释放标记之后可能有新的消息入队或提交，而那边的线程看到 draining 为 true 已经放弃了
+        } while (stripe.hasDeliverable(committedOffset()));
+    }
+
+    private long committedOffset() {
+        return log != null ? log.committedOffset() : Long.MAX_VALUE;
+    }
+
+    private void deliver(Delivery delivery) {
+        ChatMessage message = delivery.message;
+        byte[] encoded = delivery.encoded;
+        EncodedMessage frame = encoded != null
+                ? new EncodedMessage(encoded, message.getUserId())
+                : EncodedMessage.of(message);
+        rooms.broadcast(delivery.room, frame);
+        if (cluster != null && cluster.hasRemoteSubscribers(delivery.room)) {
+            // 分发的消息要带上日志分配的 offset
+            cluster.fanOut(delivery.room, encoded != null ? parse(encoded) : message);
+        }
+    }
+
+    /**
+     * owner 分发过来的消息，只投递给本地订阅者。
+     */
+    void deliverReplica(ChatMessage message) {
+        rooms.broadcast(ChatRoomRegistry.roomOf(message), EncodedMessage.of(message));
+    }
+
+    private static ChatMessage parse(byte[] encoded) {
+        try {
+            return ChatMessage.parseFrom(encoded);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("日志返回的消息编码无效", e);
+        }
+    }
+
+    private void replay(ReplayRequest request, StreamObserver<EncodedMessage> responseObserver) {
+        if (log == null) {
+            responseObserver.onError(Status.UNIMPLEMENTED.withDescription("chat log is disabled").asRuntimeException());
+            return;
+        }
+        String room = request.getRoom().isEmpty() ? ChatRoomRegistry.DEFAULT_ROOM : request.getRoom();
+        if (cluster != null && !cluster.owns(room)) {
+            cluster.replay(room, request, (ServerCallStreamObserver<EncodedMessage>) responseObserver);
+            return;
+        }
+        ChatLog.Cursor cursor = request.getFromOffset() > 0 || request.getFromTimestamp() <= 0
+                ? log.fromOffset(room, request.getFromOffset())
+                : log.fromTimestamp(room, request.getFromTimestamp());
+        ReplayStream stream = new ReplayStream((ServerCallStreamObserver<EncodedMessage>) responseObserver, cursor,
+                log.committedOffset(), config.outboundBatchSize);
+        // 读映射区可能缺页阻塞，配置了处理器线程池时不在事件循环上做
+        Executor executor = streamExecutor();
+        ((ServerCallStreamObserver<EncodedMessage>) responseObserver).setOnReadyHandler(() -> executor.execute(stream::pump));
+        executor.execute(stream::pump);
+    }
+
+    private static final class RoomStripe {
+        // 由 this 的锁保护
+        final ArrayDeque<Delivery> queue = new ArrayDeque<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        // 队首的消息已经提交时才取出，保证按 offset 顺序广播
+        synchronized Delivery poll(long committedOffset) {
+            return hasDeliverable(committedOffset) ? queue.pollFirst() : null;
+        }
+
+        synchronized boolean hasDeliverable(long committedOffset) {
+            Delivery head = queue.peekFirst();
+            return head != null && head.offset <= committedOffset;
+        }
+
+        synchronized void discardAfter(long committedOffset) {
+            queue.removeIf(delivery -> delivery.offset > committedOffset);
+        }
+    }
+
+    private static final class Delivery {
+        final String room;
+        final ChatMessage message;
+        // 日志分配的 offset，没有开启日志时为 0
+        final long offset;
+        // 日志返回的带 offset 的编码，没有开启日志时为 null
+        final byte[] encoded;
+
+        Delivery(String room, ChatMessage message, long offset, byte[] encoded) {
+            this.room = room;
+            this.message = message;
+            this.offset = offset;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * 按流控把日志里的记录打包成 ChatBatch 发出去，读到回放开始时已提交的末尾就结束。
+     * pump 只在 gRPC 的调用线程上被调用，同一个流的回调是串行的。
+     */
+    private static final class ReplayStream {
+        private static final int TAG_SIZE = CodedOutputStream.computeTagSize(ChatBatch.MESSAGES_FIELD_NUMBER);
+
+        private final ServerCallStreamObserver<EncodedMessage> call;
+        private final ChatLog.Cursor cursor;
+        private final long endOffset;
+        private final ByteBuffer[] parts;
+        private boolean done;
+
+        ReplayStream(ServerCallStreamObserver<EncodedMessage> call, ChatLog.Cursor cursor, long endOffset, int batchSize) {
+            this.call = call;
+            this.cursor = cursor;
+            this.endOffset = endOffset;
+            this.parts = new ByteBuffer[Math.max(1, batchSize) * 2];
+        }
+
+        void pump() {
+            // 回放的上界是开始时已提交的 offset，之后的新消息由 Chat 流实时收到
+            while (!done && call.isReady() && !call.isCancelled()) {
+                int count = 0;
+                while (count < parts.length && cursor.next() && cursor.offset() <= endOffset) {
+                    // 每条消息前面是 repeated 字段的 tag 和长度，后面直接引用映射区里的消息编码
+                    ByteBuffer payload = cursor.payload();
+                    ByteBuffer header = ByteBuffer.allocate(TAG_SIZE + CodedOutputStream.computeUInt32SizeNoTag(payload.remaining()));
+                    writeHeader(header, payload.remaining());
+                    parts[count++] = header;
+                    parts[count++] = payload;
+                }
+                if (count == 0) {
+                    done = true;
+                    call.onCompleted();
+                    return;
+                }
+                call.onNext(EncodedMessage.ofSegments(parts, count));
+            }
+        }
+
+        private static void writeHeader(ByteBuffer header, int length) {
+            header.put((byte) (ChatBatch.MESSAGES_FIELD_NUMBER << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED));
+            while ((length & ~0x7F) != 0) {
+                header.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            header.put((byte) length);
+            header.flip();
+        }
+    }
+
+    /**
+     * 聊天流的入站处理。配置了处理器线程池时消息在流自己的 {@link SerializingExecutor} 上处理，
+     * 并且关闭自动流控，处理完一条再请求下一条，流的积压留在传输层的 HTTP/2 窗口里而不是任务队列里。
+     * 取消、出错和结束也走同一个执行器，保证排在已经收到的消息之后。
+     * 每条消息先经过 {@link AdmissionControl}，被拒绝时以 RESOURCE_EXHAUSTED 结束整个流。
+     */
+    private abstract class InboundObserver<T extends MessageLite> implements StreamObserver<T> {
+        private final ServerCallStreamObserver<EncodedMessage> call;
+        private final ChatSubscriber subscriber;
+        private final Executor executor;
+        private final boolean manualFlowControl;
+        private volatile boolean rejected;
+
+        InboundObserver(ServerCallStreamObserver<EncodedMessage> call, ChatSubscriber subscriber) {
+            this.call = call;
+            this.subscriber = subscriber;
+            this.executor = streamExecutor();
+            this.manualFlowControl = handlerPool != null;
+            if (manualFlowControl) {
+                call.disableAutoRequest();
+                call.request(1);
+            }
+            call.setOnCancelHandler(() -> executor.execute(() -> {
+                subscriber.close();
+                rooms.leave(subscriber);
+            }));
+        }
+
+        abstract void handle(T value);
+
+        /** 一个入站帧里的聊天消息数，用于在途预算 */
+        int messageCount(T value) {
+            return 1;
+        }
+
+        @Override
+        public void onNext(T value) {
+            if (rejected) {
+                return;
+            }
+            int messages = messageCount(value);
+            int bytes = value.getSerializedSize();
+            Status status = admission.admitMessage(messages, bytes);
+            if (status != null) {
+                executor.execute(() -> reject(status));
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    // 流已经被断开（例如慢客户端）时，还在路上的消息不再处理，免得重新加入房间
+                    if (!call.isCancelled() && !rejected && !subscriber.isClosed()) {
+                        // 在任务里计时：有处理器线程池时 gRPC 的 onMessage 只是把消息交给这里排队
+                        long start = System.nanoTime();
+                        try {
+                            handle(value);
+                        } finally {
+                            metrics.recordProcessing(System.nanoTime() - start);
+                        }
+                    }
+                } catch (StatusRuntimeException e) {
+                    reject(e.getStatus());
+                } finally {
+                    admission.release(messages, bytes);
+                    if (manualFlowControl && !rejected) {
+                        call.request(1);
+                    }
+                }
+            });
+        }
+
+        // 已经排队的发送消息直接丢弃，尽快释放内存
+        private void reject(Status status) {
+            if (rejected) {
+                return;
+            }
+            rejected = true;
+            logger.warning("Rejecting stream in room " + subscriber.room() + ": " + status.getDescription());
+            rooms.leave(subscriber);
+            subscriber.fail(status);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            executor.execute(() -> {
+                logger.warning("Chat error: " + t.getMessage());
+                subscriber.close();
+                rooms.leave(subscriber);
+            });
+        }
+
+        @Override
+        public void onCompleted() {
+            executor.execute(() -> {
+                rooms.leave(subscriber);
+                subscriber.complete();
+            });
+        }
+    }
+}
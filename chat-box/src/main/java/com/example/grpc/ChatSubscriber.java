@@ -0,0 +1,249 @@
+package com.example.grpc;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * 一个打开的 Chat 流在聊天室里的订阅者。
+ * 广播线程只把消息放进有界发送队列，真正的 onNext 只在流 isReady() 时由 drain() 执行，
+ * drain() 同时挂在 setOnReadyHandler 上，这样慢客户端不会让 Netty 无限缓冲。
+ * 队列写满后按 {@link SlowConsumerPolicy} 处理。
+ * 批量模式（ChatBatched 流）下每次把排队的多条消息合并成一个 ChatBatch 帧写出。
+ */
+final class ChatSubscriber {
+    private static final Logger logger = Logger.getLogger(ChatSubscriber.class.getName());
+
+    private final ServerCallStreamObserver<EncodedMessage> observer;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final ArrayDeque<EncodedMessage> queue;
+    // 大于 1 时为批量模式，scratch 只被持有 draining 标记的线程使用
+    private final int maxBatch;
+    private final EncodedMessage[] scratch;
+    // 保证同一时刻只有一个线程在调用 observer，StreamObserver 本身不是线程安全的
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile String room;
+    private volatile int depth;
+    private volatile long dropped;
+    // 以下字段都由 queue 的锁保护
+    private boolean completing;
+    private Status failure;
+    private boolean closed;
+
+    ChatSubscriber(ServerCallStreamObserver<EncodedMessage> observer, int capacity, SlowConsumerPolicy policy) {
+        this(observer, capacity, policy, 1);
+    }
+
+    ChatSubscriber(ServerCallStreamObserver<EncodedMessage> observer, int capacity, SlowConsumerPolicy policy, int maxBatch) {
+        this.observer = observer;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 16));
+        this.maxBatch = Math.max(1, maxBatch);
+        this.scratch = this.maxBatch > 1 ? new EncodedMessage[this.maxBatch] : null;
+    }
+
+    String room() {
+        return room;
+    }
+
+    void room(String room) {
+        this.room = room;
+    }
+
+    /** 当前排队等待发送的消息数 */
+    int depth() {
+        return depth;
+    }
+
+    /** 因为队列写满而被丢弃或合并掉的消息数 */
+    long dropped() {
+        return dropped;
+    }
+
+    /**
+     * 放进发送队列。返回 false 表示流已经结束或因为跟不上被断开，调用方应当把它移出聊天室。
+     */
+    boolean send(EncodedMessage frame) {
+        boolean disconnected = false;
+        synchronized (queue) {
+            if (closed || failure != null) {
+                return false;
+            }
+            if (completing) {
+                return true;
+            }
+            if (queue.size() >= capacity && !makeRoom(frame)) {
+                // DISCONNECT 策略：积压的消息不会再发出去，立即释放，错误在锁外由 drain() 发出
+                queue.clear();
+                depth = 0;
+                disconnected = true;
+            } else {
+                queue.addLast(frame);
+                depth = queue.size();
+            }
+        }
+        // 慢客户端的流通常不可写，不会再有 onReady 回调，断开时必须在这里主动 drain
+        drain();
+        return !disconnected;
+    }
+
+    /** 发送完排队的消息后结束流 */
+    void complete() {
+        synchronized (queue) {
+            completing = true;
+        }
+        drain();
+    }
+
+    /** 丢弃排队的消息，以 status 结束流 */
+    void fail(Status status) {
+        synchronized (queue) {
+            if (closed || failure != null) {
+                return;
+            }
+            failure = status;
+        }
+        drain();
+    }
+
+    /** 流已经结束或正在以错误结束，不再处理它发来的消息 */
+    boolean isClosed() {
+        synchronized (queue) {
+            return closed || failure != null;
+        }
+    }
+
+    /** 流已经被取消或出错，丢弃剩余消息 */
+    void close() {
+        synchronized (queue) {
+            closed = true;
+            queue.clear();
+            depth = 0;
+        }
+    }
+
+    /**
+     * 在流可写时把队列里的消息写出去。由广播线程和 onReady 回调共同驱动。
+     */
+    void drain() {
+        do {
+            if (!draining.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                drainLoop();
+            } finally {
+                draining.set(false);
+            }
+            // 释放标记之后可能有新的消息入队，而入队线程看到 draining 为 true 已经放弃了
+        } while (hasPendingWork());
+    }
+
+    private void drainLoop() {
+        while (true) {
+            EncodedMessage frame;
+            int batched = 0;
+            Status error = null;
+            synchronized (queue) {
+                if (closed) {
+                    return;
+                }
+                if (failure != null) {
+                    closed = true;
+                    queue.clear();
+                    depth = 0;
+                    error = failure;
+                }
+            }
+            if (error != null) {
+                observer.onError(error.asRuntimeException());
+                return;
+            }
+            synchronized (queue) {
+                if (closed) {
+                    return;
+                }
+                if (!observer.isReady() && !queue.isEmpty()) {
+                    return;
+                }
+                if (scratch != null) {
+                    while (batched < maxBatch && !queue.isEmpty()) {
+                        scratch[batched++] = queue.pollFirst();
+                    }
+                    frame = batched > 0 ? scratch[0] : null;
+                } else {
+                    frame = queue.pollFirst();
+                }
+                depth = queue.size();
+                if (frame == null) {
+                    if (completing) {
+                        closed = true;
+                        observer.onCompleted();
+                    }
+                    return;
+                }
+            }
+            if (observer.isCancelled()) {
+                close();
+                return;
+            }
+            if (scratch != null) {
+                frame = EncodedMessage.batch(scratch, batched);
+                Arrays.fill(scratch, 0, batched, null);
+            }
+            observer.onNext(frame);
+        }
+    }
+
+    private boolean hasPendingWork() {
+        synchronized (queue) {
+            if (closed) {
+                return false;
+            }
+            return failure != null || (completing && queue.isEmpty()) || (!queue.isEmpty() && observer.isReady());
+        }
+    }
+
+    // 队列已满时按策略腾出位置，返回 false 表示新消息不再入队
+    private boolean makeRoom(EncodedMessage frame) {
+        dropped++;
+        switch (policy) {
+            case COALESCE:
+                if (removeLastFrom(frame.coalesceKey())) {
+                    return true;
+                }
+                queue.pollFirst();
+                return true;
+            case DISCONNECT:
+                logger.warning("Disconnecting slow consumer in room " + room + ", outbound queue full at " + capacity);
+                failure = Status.RESOURCE_EXHAUSTED.withDescription("slow consumer: outbound queue is full");
+                return false;
+            case DROP_OLDEST:
+            default:
+                queue.pollFirst();
+                return true;
+        }
+    }
+
+    private boolean removeLastFrom(String key) {
+        if (key == null) {
+            return false;
+        }
+        Iterator<EncodedMessage> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            if (Objects.equals(key, it.next().coalesceKey())) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.grpc;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * 到一个对端节点的持久转发链路，底层是一条 Forward 客户端流。
+ * 转发给 owner 的消息和 owner 分发出去的消息各用一个 {@link ChatBatcher} 攒批，订阅变化立即发送。
+ * 流断开后隔一段时间重连，重连后重新声明本节点在对端拥有的聊天室上的订阅。
+ * 断开期间或对端长时间不可写时消息直接丢弃并计数，不在内存里无限堆积。
+ */
+final class ClusterLink {
+    private static final Logger logger = Logger.getLogger(ClusterLink.class.getName());
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    // 流不可写时最多再交给 gRPC 缓冲的批数，超过后丢弃直到流重新可写
+    private static final int MAX_BLOCKED_BATCHES = 1024;
+
+    private final String self;
+    private final String peer;
+    private final ManagedChannel channel;
+    private final ClusterServiceGrpc.ClusterServiceStub stub;
+    private final ScheduledExecutorService scheduler;
+    private final Supplier<Collection<String>> subscriptions;
+    private final ChatBatcher forwardBatcher;
+    private final ChatBatcher fanOutBatcher;
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private Connection connection;
+    private int blockedBatches;
+    private boolean closed;
+
+    /**
+     * @param subscriptions 本节点当前有订阅者、且 owner 是这个对端的聊天室，重连时重新声明
+     */
+    ClusterLink(String self, String peer, ManagedChannel channel, int batchSize, long lingerMillis,
+                ScheduledExecutorService scheduler, Supplier<Collection<String>> subscriptions) {
+        this.self = self;
+        this.peer = peer;
+        this.channel = channel;
+        // 对端还没启动时调用会一直等到连接就绪，节点的启动顺序无关紧要
+        this.stub = ClusterServiceGrpc.newStub(channel).withWaitForReady();
+        this.scheduler = scheduler;
+        this.subscriptions = subscriptions;
+        this.forwardBatcher = new ChatBatcher(batchTarget(false), batchSize, lingerMillis, TimeUnit.MILLISECONDS, scheduler);
+        this.fanOutBatcher = new ChatBatcher(batchTarget(true), batchSize, lingerMillis, TimeUnit.MILLISECONDS, scheduler);
+    }
+
+    String peer() {
+        return peer;
+    }
+
+    ManagedChannel channel() {
+        return channel;
+    }
+
+    synchronized void start() {
+        connect();
+    }
+
+    /** 把客户端发来的消息转发给 owner */
+    void forward(ChatMessage message) {
+        forwardBatcher.send(message);
+    }
+
+    /** 把已经定序的消息分发给对端的订阅者 */
+    void fanOut(ChatMessage message) {
+        fanOutBatcher.send(message);
+    }
+
+    void subscribe(String room) {
+        write(ForwardBatch.newBuilder().setFromNode(self).addSubscribe(room).build(), 0);
+    }
+
+    void unsubscribe(String room) {
+        write(ForwardBatch.newBuilder().setFromNode(self).addUnsubscribe(room).build(), 0);
+    }
+
+    long sentMessages() {
+        return sentMessages.sum();
+    }
+
+    long droppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    void close() {
+        forwardBatcher.close();
+        fanOutBatcher.close();
+        synchronized (this) {
+            closed = true;
+            if (connection != null) {
+                connection.requests.onCompleted();
+                connection = null;
+            }
+        }
+        channel.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return peer + (isConnected() ? " connected" : " disconnected") + ", sent " + sentMessages() + ", dropped " + droppedMessages();
+    }
+
+    private StreamObserver<ChatBatch> batchTarget(boolean fromOwner) {
+        return new StreamObserver<ChatBatch>() {
+            @Override
+            public void onNext(ChatBatch batch) {
+                write(ForwardBatch.newBuilder()
+                        .setFromNode(self)
+                        .setFromOwner(fromOwner)
+                        .addAllMessages(batch.getMessagesList())
+                        .build(), batch.getMessagesCount());
+            }
+
+            @Override
+            public void onError(Throwable t) {
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+        };
+    }
+
+    private synchronized void write(ForwardBatch batch, int messages) {
+        if (connection == null) {
+            droppedMessages.add(messages);
+            return;
+        }
+        if (!connection.requests.isReady() && ++blockedBatches > MAX_BLOCKED_BATCHES && messages > 0) {
+            droppedMessages.add(messages);
+            return;
+        }
+        connection.requests.onNext(batch);
+        sentMessages.add(messages);
+    }
+
+    private synchronized void connect() {
+        if (closed) {
+            return;
+        }
+        Connection next = new Connection();
+        stub.forward(next);
+        connection = next;
+        blockedBatches = 0;
+        // 在同一把锁内发出，之后的订阅变化一定排在这份快照后面
+        Collection<String> rooms = subscriptions.get();
+        if (!rooms.isEmpty()) {
+            next.requests.onNext(ForwardBatch.newBuilder().setFromNode(self).addAllSubscribe(rooms).build());
+        }
+    }
+
+    private synchronized void connectionLost(Connection lost, Throwable t) {
+        if (connection != lost || closed) {
+            return;
+        }
+        connection = null;
+        logger.warning("到节点 " + peer + " 的转发链路断开，" + RECONNECT_DELAY_MILLIS + "ms 后重连: "
+                + (t == null ? "stream completed" : t.getMessage()));
+        scheduler.schedule(this::connect, RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void writable() {
+        blockedBatches = 0;
+    }
+
+    private final class Connection implements ClientResponseObserver<ForwardBatch, ForwardAck> {
+        private ClientCallStreamObserver<ForwardBatch> requests;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ForwardBatch> requestStream) {
+            requests = requestStream;
+            requestStream.setOnReadyHandler(ClusterLink.this::writable);
+        }
+
+        @Override
+        public void onNext(ForwardAck ack) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            connectionLost(this, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            connectionLost(this, null);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.grpc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一致性哈希环：每个节点在环上放置若干虚拟节点，聊天室按名字的哈希顺时针找到第一个虚拟节点作为 owner。
+ * 环在构造后不再变化，查询只是一次字符串哈希加一次二分查找，不加锁。
+ * 哈希函数是固定的 FNV-1a，保证集群里所有进程对同一个聊天室算出同一个 owner。
+ */
+final class ConsistentHashRing {
+    private final List<String> nodes;
+    private final long[] points;
+    private final String[] owners;
+
+    ConsistentHashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("集群节点列表为空");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive: " + virtualNodes);
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        long[][] entries = new long[nodes.size() * virtualNodes][];
+        int n = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[n++] = new long[] {hash(nodes.get(i) + "#" + v), i};
+            }
+        }
+        // 先按哈希值再按节点下标排序，哈希冲突时各进程的结果也一致
+        Arrays.sort(entries, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        points = new long[entries.length];
+        owners = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = nodes.get((int) entries[i][1]);
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    String owner(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == points.length) {
+                index = 0;
+            }
+        }
+        return owners[index];
+    }
+
+    // FNV-1a 64 位，再做一次 murmur3 的 fmix64 让相近的字符串在环上分散开
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
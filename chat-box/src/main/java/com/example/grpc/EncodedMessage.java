@@ -0,0 +1,221 @@
+package com.example.grpc;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.WireFormat;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 已序列化好的消息帧。
+ * 广播时一条消息只序列化一次，之后每个订阅流直接写出同一份字节，不再重复编码。
+ * 回放历史时帧由若干个直接指向日志内存映射区的片段组成，消息不会先被拷贝到堆上。
+ */
+final class EncodedMessage {
+    static final MethodDescriptor.Marshaller<EncodedMessage> MARSHALLER = new Marshaller();
+
+    // 写出时复用的中转缓冲区，用于把直接内存里的片段交给只接受 byte[] 的 OutputStream
+    private static final ThreadLocal<byte[]> TRANSFER_BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final byte[] bytes;
+    private final ByteBuffer[] segments;
+    private final int size;
+    // 慢消费者合并策略按这个键替换排队中的旧消息，通常是发送者的 user_id
+    private final String coalesceKey;
+
+    EncodedMessage(byte[] bytes) {
+        this(bytes, null);
+    }
+
+    EncodedMessage(byte[] bytes, String coalesceKey) {
+        this.bytes = bytes;
+        this.segments = null;
+        this.size = bytes.length;
+        this.coalesceKey = coalesceKey;
+    }
+
+    private EncodedMessage(ByteBuffer[] segments, int size) {
+        this.bytes = null;
+        this.segments = segments;
+        this.size = size;
+        this.coalesceKey = null;
+    }
+
+    /**
+     * 由若干片段按顺序拼成的帧，片段的 position 到 limit 之间是要写出的内容，写出时不会修改它们。
+     */
+    static EncodedMessage ofSegments(ByteBuffer[] segments, int count) {
+        ByteBuffer[] parts = new ByteBuffer[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            parts[i] = segments[i];
+            size += segments[i].remaining();
+        }
+        return new EncodedMessage(parts, size);
+    }
+
+    static EncodedMessage of(MessageLite message) {
+        return new EncodedMessage(message.toByteArray());
+    }
+
+    static EncodedMessage of(ChatMessage message) {
+        return new EncodedMessage(message.toByteArray(), message.getUserId());
+    }
+
+    /**
+     * 把若干条已编码的 ChatMessage 直接拼成一个 ChatBatch 帧。
+     * repeated 字段在线上就是逐条的 tag + 长度 + 内容，所以不需要重新解析或序列化消息。
+     */
+    static EncodedMessage batch(EncodedMessage[] frames, int count) {
+        int tagSize = CodedOutputStream.computeTagSize(ChatBatch.MESSAGES_FIELD_NUMBER);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int length = frames[i].bytes.length;
+            size += tagSize + CodedOutputStream.computeUInt32SizeNoTag(length) + length;
+        }
+        byte[] out = new byte[size];
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = frames[i].bytes;
+                output.writeTag(ChatBatch.MESSAGES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                output.writeUInt32NoTag(bytes.length);
+                output.writeRawBytes(bytes);
+            }
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("编码 ChatBatch 失败", e);
+        }
+        return new EncodedMessage(out);
+    }
+
+    /** 堆上帧的内容，片段帧返回 null */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    String coalesceKey() {
+        return coalesceKey;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static final class Marshaller implements MethodDescriptor.Marshaller<EncodedMessage> {
+        @Override
+        public InputStream stream(EncodedMessage value) {
+            if (value.bytes != null) {
+                return new FrameInputStream(value.bytes);
+            }
+            return new SegmentInputStream(value.segments, value.size);
+        }
+
+        @Override
+        public EncodedMessage parse(InputStream stream) {
+            try {
+                return new EncodedMessage(stream.readAllBytes());
+            } catch (IOException e) {
+                throw new IllegalStateException("读取消息帧失败", e);
+            }
+        }
+    }
+
+    // 实现 KnownLength/Drainable，让 gRPC 直接把字节写进帧缓冲区，而不是再经过一次中间拷贝
+    private static final class FrameInputStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        FrameInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+
+    private static final class SegmentInputStream extends InputStream implements KnownLength, Drainable {
+        private final ByteBuffer[] segments;
+        private int current;
+        private int remaining;
+
+        SegmentInputStream(ByteBuffer[] segments, int size) {
+            this.segments = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                this.segments[i] = segments[i].duplicate();
+            }
+            this.remaining = size;
+        }
+
+        @Override
+        public int available() {
+            return remaining;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer segment = nextSegment();
+            if (segment == null) {
+                return -1;
+            }
+            remaining--;
+            return segment.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer segment = nextSegment();
+            if (segment == null) {
+                return -1;
+            }
+            int n = Math.min(len, segment.remaining());
+            segment.get(b, off, n);
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int written = 0;
+            byte[] transfer = TRANSFER_BUFFER.get();
+            ByteBuffer segment;
+            while ((segment = nextSegment()) != null) {
+                if (segment.hasArray()) {
+                    int n = segment.remaining();
+                    target.write(segment.array(), segment.arrayOffset() + segment.position(), n);
+                    segment.position(segment.limit());
+                    written += n;
+                } else {
+                    int n = Math.min(transfer.length, segment.remaining());
+                    segment.get(transfer, 0, n);
+                    target.write(transfer, 0, n);
+                    written += n;
+                }
+            }
+            remaining = 0;
+            return written;
+        }
+
+        private ByteBuffer nextSegment() {
+            while (current < segments.length) {
+                if (segments[current].hasRemaining()) {
+                    return segments[current];
+                }
+                current++;
+            }
+            return null;
+        }
+    }
+}
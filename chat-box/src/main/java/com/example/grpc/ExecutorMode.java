@@ -0,0 +1,82 @@
+package com.example.grpc;
+
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallExecutorSupplier;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * ChatServer 处理器的执行方式。
+ *
+ * <p>DIRECT、BOUNDED 和 VIRTUAL 都让 gRPC 在事件循环上直接回调（只做反序列化），
+ * BOUNDED 和 VIRTUAL 再把每个流的处理交给一个 {@link SerializingExecutor}，
+ * 并改为手动流控：处理完一条消息才向传输层要下一条，所以每个流最多只有一条在途的处理任务。
+ * 只有 ChatService 自己做这种分派，其他服务（集群转发、附件）的回调仍然交给同一个线程池执行，
+ * 它们可能阻塞在写日志或磁盘 I/O 上，不能占住事件循环。
+ */
+public enum ExecutorMode {
+    /** gRPC 默认的无界缓存线程池，处理器在池线程上执行 */
+    DEFAULT,
+    /** 处理器直接在 Netty 事件循环上执行，只适合完全不阻塞的处理器 */
+    DIRECT,
+    /** 固定大小的线程池，阻塞的处理器占用的线程数有上限 */
+    BOUNDED,
+    /** 每个任务一个虚拟线程（Java 21+），不可用时回退到 BOUNDED */
+    VIRTUAL;
+
+    private static final Logger logger = Logger.getLogger(ExecutorMode.class.getName());
+
+    /**
+     * 按模式配置 gRPC 的回调执行器，返回处理器使用的线程池；DEFAULT 和 DIRECT 返回 null，表示在回调线程上直接处理。
+     * 返回的线程池需要在服务停止时由调用方关闭。
+     */
+    ExecutorService configure(NettyServerBuilder builder, int threads) {
+        switch (this) {
+            case DEFAULT:
+                return null;
+            case DIRECT:
+                builder.directExecutor();
+                return null;
+            case BOUNDED:
+                return dispatchOthers(builder, boundedPool(threads));
+            case VIRTUAL:
+                ExecutorService virtual = virtualThreadPerTask();
+                return dispatchOthers(builder, virtual != null ? virtual : boundedPool(threads));
+            default:
+                throw new AssertionError(this);
+        }
+    }
+
+    // ChatService 的调用在事件循环上回调，由 ChatServiceImpl 自己分派到线程池；其他服务的回调直接在线程池上执行
+    private static ExecutorService dispatchOthers(NettyServerBuilder builder, ExecutorService pool) {
+        builder.directExecutor().callExecutor(new ServerCallExecutorSupplier() {
+            @Override
+            public <ReqT, RespT> Executor getExecutor(ServerCall<ReqT, RespT> call, Metadata metadata) {
+                return ChatServiceGrpc.SERVICE_NAME.equals(call.getMethodDescriptor().getServiceName()) ? null : pool;
+            }
+        });
+        return pool;
+    }
+
+    private static ExecutorService boundedPool(int threads) {
+        return Executors.newFixedThreadPool(threads, new DefaultThreadFactory("chat-handler", true));
+    }
+
+    // 通过反射调用，源码和字节码仍然兼容 Java 11
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            logger.warning("当前 JVM 不支持虚拟线程（需要 Java 21+），回退到固定大小线程池: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.grpc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热路径日志的采样器：每个时间窗口最多放行一条，其余只计数，下次放行时报告中间省略了多少条。
+ * 没被放行的调用只有一次时间读取和一次计数，不会拼接字符串。
+ */
+final class LogSampler {
+    private final long intervalNanos;
+    private final AtomicLong nextNanos = new AtomicLong(System.nanoTime());
+    private final LongAdder suppressed = new LongAdder();
+
+    /**
+     * @param intervalMillis 两次输出之间的最小间隔，0 表示每次都输出
+     */
+    LogSampler(long intervalMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * @return -1 表示这次不输出；否则返回上次输出以来被省略的条数
+     */
+    long sample() {
+        if (intervalNanos <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long next = nextNanos.get();
+        if (now - next < 0 || !nextNanos.compareAndSet(next, now + intervalNanos)) {
+            suppressed.increment();
+            return -1;
+        }
+        return suppressed.sumThenReset();
+    }
+}
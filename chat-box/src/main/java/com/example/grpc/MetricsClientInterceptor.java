@@ -0,0 +1,83 @@
+package com.example.grpc;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ConnectivityState;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+/**
+ * 客户端指标拦截器：统计活跃流、收发消息和字节数，以及每条收到的消息在回调里的处理耗时。
+ */
+final class MetricsClientInterceptor implements ClientInterceptor {
+    private final ChatMetrics metrics;
+
+    MetricsClientInterceptor(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        return new ForwardingClientCall.SimpleForwardingClientCall<ReqT, RespT>(next.newCall(method, callOptions)) {
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                metrics.streamStarted();
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<RespT>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        metrics.inbound(message);
+                        long start = System.nanoTime();
+                        try {
+                            super.onMessage(message);
+                        } finally {
+                            metrics.recordProcessing(System.nanoTime() - start);
+                        }
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        metrics.streamClosed();
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                metrics.outbound(message);
+                super.sendMessage(message);
+            }
+        };
+    }
+
+    /**
+     * 跟踪通道的连接状态，记录每次从 CONNECTING 到 READY 的耗时（TCP 连接、TLS 握手和 HTTP/2 前言）。
+     * 每次就绪算一条 TLS 连接，和证书校验次数相减得到会话恢复次数。
+     */
+    void watchConnections(ManagedChannel channel) {
+        watch(channel, channel.getState(false), 0);
+    }
+
+    private void watch(ManagedChannel channel, ConnectivityState current, long connectingSince) {
+        channel.notifyWhenStateChanged(current, () -> {
+            ConnectivityState state = channel.getState(false);
+            long since = 0;
+            if (state == ConnectivityState.CONNECTING) {
+                since = System.nanoTime();
+            } else if (state == ConnectivityState.READY && connectingSince != 0) {
+                metrics.tlsConnectionReady();
+                metrics.recordHandshake(System.nanoTime() - connectingSince);
+            }
+            if (state != ConnectivityState.SHUTDOWN) {
+                watch(channel, state, since);
+            }
+        });
+    }
+}
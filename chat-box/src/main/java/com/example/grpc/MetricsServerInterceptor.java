@@ -0,0 +1,96 @@
+package com.example.grpc;
+
+import io.grpc.Attributes;
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerTransportFilter;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+
+/**
+ * 服务端指标拦截器：统计活跃流、收发消息和字节数。
+ * 入站消息的处理耗时不在这里记录：有处理器线程池时 onMessage 只是把消息排进流的串行执行器，
+ * 耗时由 {@link ChatServiceImpl} 在执行消息的任务里记录。
+ */
+final class MetricsServerInterceptor implements ServerInterceptor {
+    // 防御性上限，超出的多半是时钟调整
+    private static final long MAX_HANDSHAKE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ChatMetrics metrics;
+
+    MetricsServerInterceptor(ChatMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        ServerCall<ReqT, RespT> countingCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void sendMessage(RespT message) {
+                metrics.outbound(message);
+                super.sendMessage(message);
+            }
+        };
+        metrics.streamStarted();
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(countingCall, headers);
+        } catch (RuntimeException e) {
+            metrics.streamClosed();
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onMessage(ReqT message) {
+                metrics.inbound(message);
+                super.onMessage(message);
+            }
+
+            // 一个调用只会收到 onComplete 和 onCancel 之一
+            @Override
+            public void onComplete() {
+                metrics.streamClosed();
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                metrics.streamClosed();
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * 连接就绪时统计 TLS 连接，完整握手（校验证书时在会话上做了标记，见 {@link TlsCredentials}）再记录耗时：
+     * 从 SSL 会话创建（收到 ClientHello）到 HTTP/2 连接可用。会话恢复沿用原会话的创建时间，不计入耗时。
+     * OpenSSL 的会话时间只精确到秒。
+     */
+    ServerTransportFilter transportFilter() {
+        return new ServerTransportFilter() {
+            @Override
+            public Attributes transportReady(Attributes attributes) {
+                SSLSession session = attributes.get(Grpc.TRANSPORT_ATTR_SSL_SESSION);
+                if (session != null) {
+                    metrics.tlsConnectionReady();
+                    // TLS 1.2 恢复时复用同一个会话对象，取出后移除，下一条连接不会误认为完整握手
+                    if (session.getValue(TlsCredentials.FULL_HANDSHAKE) != null) {
+                        session.removeValue(TlsCredentials.FULL_HANDSHAKE);
+                        long elapsed = System.currentTimeMillis() - session.getCreationTime();
+                        if (elapsed >= 0 && elapsed <= MAX_HANDSHAKE_MILLIS) {
+                            metrics.recordHandshake(TimeUnit.MILLISECONDS.toNanos(elapsed));
+                        }
+                    }
+                }
+                return attributes;
+            }
+        };
+    }
+}
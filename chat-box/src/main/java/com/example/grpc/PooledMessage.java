@@ -0,0 +1,116 @@
+package com.example.grpc;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+import com.google.protobuf.UnsafeByteOperations;
+import io.grpc.Detachable;
+import io.grpc.HasByteBuffer;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.protobuf.lite.ProtoLiteUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 直接引用传输层缓冲区的入站消息。
+ *
+ * <p>解析时从 gRPC 手里接管（detach）存放这条消息的 Netty 池化缓冲区，protobuf 以 aliasing 模式解析，
+ * bytes 字段是指向这些缓冲区的 ByteString，而不是拷贝到堆上的数组。用完必须调用 {@link #close()}
+ * 把缓冲区还给内存池；在那之前缓冲区一直被占用，所以处理完一条再向传输层要下一条。
+ * 传输层不支持时（例如进程内传输）退回普通的解析，close 什么也不做。
+ */
+final class PooledMessage<T extends MessageLite> implements AutoCloseable {
+    private final T message;
+    private final InputStream buffers;
+    private final int size;
+
+    private PooledMessage(T message, InputStream buffers, int size) {
+        this.message = message;
+        this.buffers = buffers;
+        this.size = size;
+    }
+
+    /** 只在 close 之前有效 */
+    T message() {
+        return message;
+    }
+
+    /** 消息在线上的字节数 */
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        if (buffers != null) {
+            try {
+                buffers.close();
+            } catch (IOException e) {
+                // 释放引用计数不会真的抛出 IOException
+            }
+        }
+    }
+
+    static <T extends MessageLite> MethodDescriptor.Marshaller<PooledMessage<T>> marshaller(T defaultInstance) {
+        return new Marshaller<>(defaultInstance);
+    }
+
+    private static final class Marshaller<T extends MessageLite> implements MethodDescriptor.Marshaller<PooledMessage<T>> {
+        private final MethodDescriptor.Marshaller<T> fallback;
+        private final Parser<T> parser;
+
+        @SuppressWarnings("unchecked")
+        Marshaller(T defaultInstance) {
+            this.fallback = ProtoLiteUtils.marshaller(defaultInstance);
+            this.parser = (Parser<T>) defaultInstance.getParserForType();
+        }
+
+        @Override
+        public InputStream stream(PooledMessage<T> value) {
+            return fallback.stream(value.message);
+        }
+
+        @Override
+        public PooledMessage<T> parse(InputStream stream) {
+            if (!(stream instanceof Detachable) || !(stream instanceof HasByteBuffer)
+                    || !((HasByteBuffer) stream).byteBufferSupported() || !stream.markSupported()) {
+                T message = fallback.parse(stream);
+                return new PooledMessage<>(message, null, message.getSerializedSize());
+            }
+            InputStream buffers = ((Detachable) stream).detach();
+            try {
+                // mark 之后跳过的缓冲区不会被释放，关闭 buffers 时才统一释放
+                buffers.mark(Integer.MAX_VALUE);
+                int size = buffers.available();
+                ByteString wire = ByteString.EMPTY;
+                while (buffers.available() > 0) {
+                    ByteBuffer buffer = ((HasByteBuffer) buffers).getByteBuffer();
+                    wire = wire.concat(UnsafeByteOperations.unsafeWrap(buffer));
+                    buffers.skip(buffer.remaining());
+                }
+                CodedInputStream input = wire.newCodedInput();
+                input.enableAliasing(true);
+                return new PooledMessage<>(parser.parseFrom(input), buffers, size);
+            } catch (InvalidProtocolBufferException e) {
+                close(buffers);
+                throw Status.INTERNAL.withDescription("Invalid protobuf byte sequence").withCause(e).asRuntimeException();
+            } catch (IOException | RuntimeException e) {
+                close(buffers);
+                throw Status.INTERNAL.withDescription("读取消息失败").withCause(e).asRuntimeException();
+            }
+        }
+
+        private static void close(InputStream buffers) {
+            try {
+                buffers.close();
+            } catch (IOException ignored) {
+                // 同上
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.grpc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 在共享线程池上按提交顺序逐个执行任务，同一时刻最多占用一个线程。
+ * 每个流一个实例，流的消息处理顺序不变，而流之间可以在池里并行。
+ * 空闲时只有一个空队列和一个标记，几十万个空闲流也不占线程。
+ */
+final class SerializingExecutor implements Executor {
+    private static final Logger logger = Logger.getLogger(SerializingExecutor.class.getName());
+
+    private final Executor delegate;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    SerializingExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            delegate.execute(this::runTasks);
+        } catch (RejectedExecutionException e) {
+            // 线程池已经关闭，丢弃剩余任务
+            tasks.clear();
+            scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void runTasks() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "流处理任务出错", e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+        }
+        // 释放标记之后可能有新的任务入队，而入队线程看到标记为 true 已经放弃了调度
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
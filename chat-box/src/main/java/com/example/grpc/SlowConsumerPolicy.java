@@ -0,0 +1,13 @@
+package com.example.grpc;
+
+/**
+ * 订阅流的发送队列写满时的处理策略。
+ */
+public enum SlowConsumerPolicy {
+    /** 丢弃队列里最旧的消息，为新消息腾出位置 */
+    DROP_OLDEST,
+    /** 用新消息替换同一发送者排队中的旧消息，找不到时退化为 DROP_OLDEST */
+    COALESCE,
+    /** 以 RESOURCE_EXHAUSTED 断开这个流 */
+    DISCONNECT
+}
@@ -0,0 +1,195 @@
+package com.example.grpc;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.netty.channel.epoll.Epoll;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 比较不同传输组合（NIO/epoll × JDK/OpenSSL）的 mTLS 握手速率和加密吞吐。
+ * 每种组合在本机启动一个 ChatServer，分别测量：
+ * <ul>
+ *   <li>握手/秒：多个线程不断新建通道、等到 READY 后立即关闭，resumed% 是其中会话恢复的比例</li>
+ *   <li>MB/秒：几条 Chat 流按流控持续发送大消息，统计广播回来的字节数</li>
+ * </ul>
+ * TLS 一列是服务端/客户端的实现：开着会话缓存时客户端总是用 JDK，见 {@link TransportOptions#resolveClientSslProvider()}。
+ * 用法: TransportBenchmark [每项测试秒数]
+ */
+public class TransportBenchmark {
+    private static final String HOST = "localhost";
+    // 握手测试会占用大量临时端口，基准服务端口放在 Linux 默认的临时端口范围之外
+    private static final int BASE_PORT = 30151;
+    private static final int PAYLOAD_BYTES = 64 * 1024;
+    private static final int THROUGHPUT_STREAMS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        // 基准测试期间不需要逐条消息的日志
+        Logger.getLogger("com.example.grpc").setLevel(Level.WARNING);
+
+        List<TransportOptions> combinations = new ArrayList<>();
+        for (String transport : new String[] {"nio", "epoll"}) {
+            for (String ssl : new String[] {"jdk", "openssl"}) {
+                if ("epoll".equals(transport) && !Epoll.isAvailable()) {
+                    System.out.println("跳过 epoll: " + Epoll.unavailabilityCause());
+                    continue;
+                }
+                if ("openssl".equals(ssl) && !OpenSsl.isAvailable()) {
+                    System.out.println("跳过 openssl: " + OpenSsl.unavailabilityCause());
+                    continue;
+                }
+                combinations.add(new TransportOptions(transport, ssl));
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        int port = BASE_PORT;
+        for (TransportOptions options : combinations) {
+            ChatServerConfig config = new ChatServerConfig();
+            config.logDir = "";
+            config.attachmentDir = "";
+            config.statsPort = -1;
+            config.transport = options;
+            ChatServer server = new ChatServer(port, config);
+            server.start();
+            try {
+                SslContext sslContext = ChatClient.newSslContext(options, null);
+                double handshakes = measureHandshakes(sslContext, options, port, seconds);
+                // 客户端开着会话缓存，重连可能是会话恢复而不是完整握手
+                double resumed = server.metrics().resumptionRate() * 100;
+                double megabytes = measureThroughput(sslContext, options, port, seconds);
+                rows.add(String.format("%-8s %-12s %14.1f %10.1f %14.1f", options.useEpoll() ? "epoll" : "nio",
+                        options.resolveSslProvider() + "/" + options.resolveClientSslProvider(), handshakes, resumed, megabytes));
+            } finally {
+                server.stop();
+            }
+            port++;
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-8s %-12s %14s %10s %14s", "I/O", "TLS", "handshakes/s", "resumed%", "MB/s"));
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    private static double measureHandshakes(SslContext sslContext, TransportOptions options, int port, int seconds)
+            throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicLong completed = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                while (running.get()) {
+                    ManagedChannel channel = ChatClient.newChannel(HOST, port, sslContext, options);
+                    try {
+                        if (awaitReady(channel, 5, TimeUnit.SECONDS)) {
+                            completed.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    } finally {
+                        channel.shutdownNow();
+                    }
+                }
+            }, "handshake-" + i);
+            workers.add(worker);
+        }
+        long start = System.nanoTime();
+        workers.forEach(Thread::start);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        long elapsed = System.nanoTime() - start;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return completed.get() / (elapsed / 1e9);
+    }
+
+    private static double measureThroughput(SslContext sslContext, TransportOptions options, int port, int seconds)
+            throws InterruptedException {
+        ManagedChannel channel = ChatClient.newChannel(HOST, port, sslContext, options);
+        ChatServiceGrpc.ChatServiceStub stub = ChatServiceGrpc.newStub(channel);
+        AtomicLong received = new AtomicLong();
+        AtomicBoolean running = new AtomicBoolean(true);
+        String content = new String(new char[PAYLOAD_BYTES]).replace('\0', 'x');
+
+        for (int i = 0; i < THROUGHPUT_STREAMS; i++) {
+            ChatMessage message = ChatMessage.newBuilder()
+                    .setUserId("bench-" + i)
+                    .setRoom("transport-bench-" + i)
+                    .setContent(content)
+                    .build();
+            stub.chat(new ClientResponseObserver<ChatMessage, ChatMessage>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<ChatMessage> requestStream) {
+                    // 只在流可写时发送，避免客户端无限缓冲
+                    requestStream.setOnReadyHandler(() -> {
+                        while (running.get() && requestStream.isReady()) {
+                            requestStream.onNext(message);
+                        }
+                        if (!running.get()) {
+                            requestStream.onCompleted();
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(ChatMessage value) {
+                    received.addAndGet(value.getSerializedSize());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            });
+        }
+
+        // 预热一秒再开始计数
+        Thread.sleep(1000);
+        long startBytes = received.get();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        long bytes = received.get() - startBytes;
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+        channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+        return bytes / (elapsed / 1e9) / (1024 * 1024);
+    }
+
+    private static boolean awaitReady(ManagedChannel channel, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        ConnectivityState state = channel.getState(true);
+        while (state != ConnectivityState.READY) {
+            if (state == ConnectivityState.TRANSIENT_FAILURE || state == ConnectivityState.SHUTDOWN) {
+                return false;
+            }
+            CountDownLatch changed = new CountDownLatch(1);
+            channel.notifyWhenStateChanged(state, changed::countDown);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !changed.await(remaining, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            state = channel.getState(false);
+        }
+        return true;
+    }
+}
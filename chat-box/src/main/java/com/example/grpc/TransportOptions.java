@@ -0,0 +1,137 @@
+package com.example.grpc;
+
+import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.logging.Logger;
+
+/**
+ * 传输层选项：事件循环实现（NIO / epoll）、线程数、TLS 实现（JDK / OpenSSL）以及证书和会话缓存。
+ * 选择 auto 时在 Linux 上优先使用 epoll 和 netty-tcnative，缺少本地库时回退到 NIO 和 JDK。
+ */
+public class TransportOptions {
+    private static final Logger logger = Logger.getLogger(TransportOptions.class.getName());
+    private static EventLoopGroup sharedClientGroup;
+
+    /** nio、epoll 或 auto (chat.transport) */
+    public String transport = System.getProperty("chat.transport", "auto");
+    /** jdk、openssl 或 auto (chat.ssl.provider) */
+    public String sslProvider = System.getProperty("chat.ssl.provider", "auto");
+    /** 服务端接受连接的线程数 (chat.boss.threads) */
+    public int bossThreads = Integer.getInteger("chat.boss.threads", 1);
+    /** 处理 I/O 的线程数，0 表示 Netty 默认的 CPU 核数 * 2 (chat.worker.threads) */
+    public int workerThreads = Integer.getInteger("chat.worker.threads", 0);
+    /** 证书目录（generate_certs.sh 生成的 PEM 格式 server/client.crt、.key 和 ca.crt），相对于工作目录 (chat.tls.dir) */
+    public String tlsDir = System.getProperty("chat.tls.dir", "certs");
+    /** 检查证书目录是否有更新的间隔秒数，0 表示不检查 (chat.tls.reload.interval) */
+    public int tlsReloadSeconds = Integer.getInteger("chat.tls.reload.interval", 30);
+    /** TLS 会话缓存的最大条数，0 表示使用 TLS 实现的默认值 (chat.tls.session.cache) */
+    public long tlsSessionCacheSize = Long.getLong("chat.tls.session.cache", 20480);
+    /** TLS 会话可以恢复的秒数，0 表示使用 TLS 实现的默认值 (chat.tls.session.timeout) */
+    public long tlsSessionTimeoutSeconds = Long.getLong("chat.tls.session.timeout", 3600);
+
+    public TransportOptions() {
+    }
+
+    public TransportOptions(String transport, String sslProvider) {
+        this.transport = transport;
+        this.sslProvider = sslProvider;
+    }
+
+    public boolean useEpoll() {
+        switch (transport.toLowerCase()) {
+            case "epoll":
+                if (!Epoll.isAvailable()) {
+                    logger.warning("epoll 不可用，回退到 NIO: " + Epoll.unavailabilityCause());
+                    return false;
+                }
+                return true;
+            case "nio":
+                return false;
+            case "auto":
+                return Epoll.isAvailable();
+            default:
+                throw new IllegalArgumentException("未知的传输类型: " + transport);
+        }
+    }
+
+    public SslProvider resolveSslProvider() {
+        switch (sslProvider.toLowerCase()) {
+            case "openssl":
+                if (!OpenSsl.isAvailable()) {
+                    logger.warning("OpenSSL 不可用，回退到 JDK: " + OpenSsl.unavailabilityCause());
+                    return SslProvider.JDK;
+                }
+                return SslProvider.OPENSSL;
+            case "jdk":
+                return SslProvider.JDK;
+            case "auto":
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            default:
+                throw new IllegalArgumentException("未知的 SSL 实现: " + sslProvider);
+        }
+    }
+
+    /**
+     * 客户端使用的 TLS 实现。当前 Netty 版本的 OpenSSL 客户端没有会话缓存，每次重连都是完整握手，
+     * 所以开启会话缓存时客户端改用 JDK；服务端的 OpenSSL 会话缓存不受影响。
+     */
+    public SslProvider resolveClientSslProvider() {
+        SslProvider provider = resolveSslProvider();
+        return provider == SslProvider.OPENSSL && tlsSessionCacheSize > 0 ? SslProvider.JDK : provider;
+    }
+
+    /**
+     * 为服务端配置事件循环，返回创建的 boss 和 worker group，停止服务时需要由调用方关闭。
+     */
+    EventLoopGroup[] configure(NettyServerBuilder builder) {
+        EventLoopGroup boss;
+        EventLoopGroup worker;
+        if (useEpoll()) {
+            boss = new EpollEventLoopGroup(bossThreads, new DefaultThreadFactory("chat-epoll-boss", true));
+            worker = new EpollEventLoopGroup(workerThreads, new DefaultThreadFactory("chat-epoll-worker", true));
+            builder.channelType(EpollServerSocketChannel.class);
+        } else {
+            boss = new NioEventLoopGroup(bossThreads, new DefaultThreadFactory("chat-nio-boss", true));
+            worker = new NioEventLoopGroup(workerThreads, new DefaultThreadFactory("chat-nio-worker", true));
+            builder.channelType(NioServerSocketChannel.class);
+        }
+        builder.bossEventLoopGroup(boss).workerEventLoopGroup(worker);
+        return new EventLoopGroup[] {boss, worker};
+    }
+
+    /**
+     * 为客户端通道配置事件循环。epoll 下所有客户端共享一个进程级的事件循环组，NIO 使用 gRPC 默认的共享组。
+     */
+    void configure(NettyChannelBuilder builder) {
+        if (useEpoll()) {
+            builder.eventLoopGroup(sharedClientGroup(workerThreads)).channelType(EpollSocketChannel.class);
+        }
+    }
+
+    String describe() {
+        return describe(resolveSslProvider());
+    }
+
+    String describe(SslProvider provider) {
+        return (useEpoll() ? "epoll" : "nio") + "/" + provider
+                + " (boss=" + bossThreads + ", worker=" + (workerThreads == 0 ? "default" : workerThreads) + ")";
+    }
+
+    private static synchronized EventLoopGroup sharedClientGroup(int threads) {
+        if (sharedClientGroup == null) {
+            sharedClientGroup = new EpollEventLoopGroup(threads, new DefaultThreadFactory("chat-client-epoll", true));
+        }
+        return sharedClientGroup;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.AesGcmEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the buffer-based {@link AesGcmEncryptor} API with caller-owned heap arrays and direct buffers,
+ * for comparison with the String/Base64 path in {@link SymmetricEncryptionBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AesGcmEncryptorBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"128", "256"})
+    public int keySize;
+
+    private AesGcmEncryptor encryptor;
+    private byte[] plainText;
+    private byte[] cipherText;
+    private byte[] output;
+    private ByteBuffer directPlainText;
+    private ByteBuffer directCipherText;
+    private ByteBuffer directOutput;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(keySize);
+        encryptor = new AesGcmEncryptor(keyGenerator.generateKey());
+        plainText = Payloads.bytes(payloadSize);
+        cipherText = new byte[AesGcmEncryptor.ciphertextLength(payloadSize)];
+        encryptor.encrypt(plainText, 0, plainText.length, cipherText, 0);
+        output = new byte[cipherText.length];
+
+        directPlainText = ByteBuffer.allocateDirect(payloadSize);
+        directPlainText.put(plainText).flip();
+        directCipherText = ByteBuffer.allocateDirect(cipherText.length);
+        directCipherText.put(cipherText).flip();
+        directOutput = ByteBuffer.allocateDirect(cipherText.length);
+    }
+
+    @Benchmark
+    public int encrypt() throws Exception {
+        return encryptor.encrypt(plainText, 0, plainText.length, output, 0);
+    }
+
+    @Benchmark
+    public int decrypt() throws Exception {
+        return encryptor.decrypt(cipherText, 0, cipherText.length, output, 0);
+    }
+
+    @Benchmark
+    public int encryptDirect() throws Exception {
+        directOutput.clear();
+        return encryptor.encrypt(directPlainText.duplicate(), directOutput);
+    }
+
+    @Benchmark
+    public int decryptDirect() throws Exception {
+        directOutput.clear();
+        return encryptor.decrypt(directCipherText.duplicate(), directOutput);
+    }
+}
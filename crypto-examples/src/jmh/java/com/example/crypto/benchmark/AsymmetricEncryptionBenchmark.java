@@ -0,0 +1,77 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.AsymmetricEncryptionExample;
+import com.example.crypto.HybridEnvelope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AsymmetricEncryptionExample#encrypt} and {@link AsymmetricEncryptionExample#decrypt}
+ * across RSA key sizes. Those reuse the sender's session and the receiver's unwrapped data key, so they run
+ * at AES-GCM speed. The {@code *NewSession} and {@code *Uncached} variants pay the RSA wrap or unwrap
+ * on every call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsymmetricEncryptionBenchmark {
+
+    @Param({"32", "190", "16384"})
+    public int payloadSize;
+
+    @Param({"2048", "4096"})
+    public int keySize;
+
+    private KeyPair keyPair;
+    private String plainText;
+    private String cipherText;
+    private byte[] plainBytes;
+    private byte[] envelope;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(keySize);
+        keyPair = keyPairGenerator.generateKeyPair();
+        plainText = Payloads.text(payloadSize);
+        cipherText = AsymmetricEncryptionExample.encrypt(plainText, keyPair.getPublic());
+        plainBytes = Payloads.bytes(payloadSize);
+        envelope = HybridEnvelope.newSession(keyPair.getPublic()).seal(plainBytes);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return AsymmetricEncryptionExample.encrypt(plainText, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return AsymmetricEncryptionExample.decrypt(cipherText, keyPair.getPrivate());
+    }
+
+    @Benchmark
+    public byte[] encryptNewSession() throws Exception {
+        return HybridEnvelope.newSession(keyPair.getPublic()).seal(plainBytes);
+    }
+
+    @Benchmark
+    public byte[] decryptUncached() throws Exception {
+        return new HybridEnvelope.Opener(keyPair).open(envelope);
+    }
+}
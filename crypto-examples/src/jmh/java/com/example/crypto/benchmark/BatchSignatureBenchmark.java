@@ -0,0 +1,87 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.DigitalSignatureExample;
+import com.example.crypto.MerkleBatchSigner;
+import com.example.crypto.SignatureAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares per-message signing and verification with {@link DigitalSignatureExample#verifyBatch} and
+ * {@link MerkleBatchSigner}. Scores are whole batches per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchSignatureBenchmark {
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    @Param({"RSA_PKCS1", "ED25519"})
+    public SignatureAlgorithm algorithm;
+
+    private KeyPair keyPair;
+    private List<byte[]> messages;
+    private List<byte[]> signatures;
+
+    @Setup
+    public void setup() throws Exception {
+        keyPair = algorithm.generateKeyPair();
+        messages = new ArrayList<>(batchSize);
+        signatures = new ArrayList<>(batchSize);
+        byte[] payload = Payloads.bytes(256);
+        for (int i = 0; i < batchSize; i++) {
+            byte[] message = payload.clone();
+            message[0] = (byte) i;
+            message[1] = (byte) (i >>> 8);
+            messages.add(message);
+            signatures.add(algorithm.sign(message, keyPair.getPrivate()));
+        }
+    }
+
+    @Benchmark
+    public int verifySequential() throws Exception {
+        int valid = 0;
+        for (int i = 0; i < batchSize; i++) {
+            valid += DigitalSignatureExample.verify(messages.get(i), signatures.get(i), keyPair.getPublic()) ? 1 : 0;
+        }
+        return valid;
+    }
+
+    @Benchmark
+    public boolean[] verifyBatch() throws Exception {
+        return DigitalSignatureExample.verifyBatch(messages, signatures, keyPair.getPublic());
+    }
+
+    @Benchmark
+    public int signSequential() throws Exception {
+        int bytes = 0;
+        for (byte[] message : messages) {
+            bytes += algorithm.sign(message, keyPair.getPrivate()).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public MerkleBatchSigner.SignedBatch signMerkle() throws Exception {
+        return MerkleBatchSigner.sign(messages, keyPair.getPrivate(), algorithm);
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.crypto.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the crypto benchmarks once per thread count with the GC profiler enabled, so every result
+ * reports ops/sec together with the allocation rate ({@code gc.alloc.rate.norm} is bytes per op).
+ *
+ * <p>Usage: {@code CryptoBenchmarkRunner [include-regex] [thread-counts]}, for example
+ * {@code CryptoBenchmarkRunner Symmetric 1,4,8}. Results are written to {@code jmh-result-t<N>.json}.
+ */
+public class CryptoBenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : "com.example.crypto.benchmark.*";
+        String threadCounts = args.length > 1 ? args[1]
+                : "1," + Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        for (String threads : threadCounts.split(",")) {
+            int count = Integer.parseInt(threads.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(include)
+                    .threads(count)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-t" + count + ".json");
+            new Runner(options.build()).run();
+        }
+    }
+}
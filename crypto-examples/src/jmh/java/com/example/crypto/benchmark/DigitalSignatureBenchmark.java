@@ -0,0 +1,70 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.DigitalSignatureExample;
+import com.example.crypto.SignatureAlgorithm;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link DigitalSignatureExample#sign} and {@link DigitalSignatureExample#verify}
+ * across payload sizes, {@link SignatureAlgorithm}s and RSA key sizes. The key size only applies to the
+ * RSA algorithms; the EC and Ed25519 keys have a fixed size, so restrict {@code keySize} with {@code -p}
+ * when comparing only those.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigitalSignatureBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"RSA_PKCS1", "RSA_PSS", "ECDSA_P256", "ED25519"})
+    public SignatureAlgorithm algorithm;
+
+    @Param({"2048", "4096"})
+    public int keySize;
+
+    private KeyPair keyPair;
+    private String plainText;
+    private String signature;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("RSA".equals(algorithm.keyAlgorithm())) {
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(keySize);
+            keyPair = keyPairGenerator.generateKeyPair();
+        } else {
+            keyPair = algorithm.generateKeyPair();
+        }
+        plainText = Payloads.text(payloadSize);
+        signature = DigitalSignatureExample.sign(plainText, keyPair.getPrivate(), algorithm);
+    }
+
+    @Benchmark
+    public String sign() throws Exception {
+        return DigitalSignatureExample.sign(plainText, keyPair.getPrivate(), algorithm);
+    }
+
+    @Benchmark
+    public boolean verify() throws Exception {
+        return DigitalSignatureExample.verify(plainText, signature, keyPair.getPublic());
+    }
+}
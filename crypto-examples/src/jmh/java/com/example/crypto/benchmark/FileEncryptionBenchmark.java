@@ -0,0 +1,95 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.AesGcmFileEncryptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AesGcmFileEncryptor} on a temporary file across chunk sizes and fork-join parallelism.
+ * Scores are whole-file operations per second; multiply by the file size for throughput.
+ * The input files are shared; each benchmark thread writes to its own output file, because the runner
+ * may use several threads and the encryptor truncates and maps the output.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileEncryptionBenchmark {
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    @Param({"65536", "1048576"})
+    public int chunkSize;
+
+    @Param({"1", "2", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private AesGcmFileEncryptor encryptor;
+    private Path plainFile;
+    private Path encryptedFile;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        pool = new ForkJoinPool(parallelism);
+        encryptor = new AesGcmFileEncryptor(keyGenerator.generateKey(), chunkSize, pool);
+
+        plainFile = Files.createTempFile("file-bench-plain", ".bin");
+        encryptedFile = Files.createTempFile("file-bench-encrypted", ".agcm");
+        Files.write(plainFile, Payloads.bytes(fileSize));
+        encryptor.encrypt(plainFile, encryptedFile);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pool.shutdown();
+        Files.deleteIfExists(plainFile);
+        Files.deleteIfExists(encryptedFile);
+    }
+
+    @Benchmark
+    public long encrypt(Output output) throws Exception {
+        return encryptor.encrypt(plainFile, output.file);
+    }
+
+    @Benchmark
+    public long decrypt(Output output) throws Exception {
+        return encryptor.decrypt(encryptedFile, output.file);
+    }
+
+    @State(Scope.Thread)
+    public static class Output {
+        Path file;
+
+        @Setup
+        public void setup() throws Exception {
+            file = Files.createTempFile("file-bench-output", ".bin");
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.crypto.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Deterministic ASCII payloads so that a character count equals the UTF-8 byte count.
+ */
+final class Payloads {
+
+    private Payloads() {
+    }
+
+    static String text(int size) {
+        Random random = new Random(42);
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    static byte[] bytes(int size) {
+        return text(size).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.crypto.benchmark;
+
+import com.example.crypto.SymmetricEncryptionExample;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link SymmetricEncryptionExample#encrypt} and {@link SymmetricEncryptionExample#decrypt}
+ * across payload and AES key sizes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SymmetricEncryptionBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"128", "256"})
+    public int keySize;
+
+    private SecretKey secretKey;
+    private String plainText;
+    private String cipherText;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(keySize);
+        secretKey = keyGenerator.generateKey();
+        plainText = Payloads.text(payloadSize);
+        cipherText = SymmetricEncryptionExample.encrypt(plainText, secretKey);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return SymmetricEncryptionExample.encrypt(plainText, secretKey);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return SymmetricEncryptionExample.decrypt(cipherText, secretKey);
+    }
+}
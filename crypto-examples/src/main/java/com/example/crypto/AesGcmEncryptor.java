@@ -0,0 +1,182 @@
+package com.example.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reusable AES/GCM/NoPadding encryptor bound to one key, built for encrypting large numbers of
+ * small messages with as little garbage as possible.
+ *
+ * <p>Every thread keeps its own {@link Cipher}, so the hot path never calls {@code Cipher.getInstance}
+ * or creates a {@link SecureRandom}. Nonces are 96 bits: a random 32-bit prefix chosen when the
+ * encryptor is created followed by a 64-bit counter that starts at a random value. They never repeat
+ * for the lifetime of an encryptor and need no reseeding.
+ *
+ * <p>The output layout is {@code IV || ciphertext || tag}, the same as
+ * {@link SymmetricEncryptionExample}, and it is written directly into a caller-supplied buffer.
+ * Instances are thread-safe.
+ */
+public final class AesGcmEncryptor {
+
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    public static final int IV_LENGTH = 12; // 96 bits
+    public static final int TAG_LENGTH = 16; // 128 bits
+    /** Bytes added to every plaintext: the IV and the authentication tag. */
+    public static final int OVERHEAD = IV_LENGTH + TAG_LENGTH;
+
+    private static final SecureRandom SEED_RANDOM = new SecureRandom();
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(AesGcmEncryptor::newCipher);
+    // Scratch IV for the ByteBuffer API, where the IV cannot be read back from the output buffer.
+    private static final ThreadLocal<byte[]> IV_SCRATCH = ThreadLocal.withInitial(() -> new byte[IV_LENGTH]);
+
+    private final SecretKey key;
+    private final int noncePrefix;
+    private final AtomicLong counter;
+
+    public AesGcmEncryptor(SecretKey key) {
+        this.key = key;
+        this.noncePrefix = SEED_RANDOM.nextInt();
+        this.counter = new AtomicLong(SEED_RANDOM.nextLong());
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /** Size of the encrypted form of a plaintext of the given length. */
+    public static int ciphertextLength(int plaintextLength) {
+        return plaintextLength + OVERHEAD;
+    }
+
+    /** Size of the plaintext contained in an encrypted message of the given length. */
+    public static int plaintextLength(int ciphertextLength) {
+        return ciphertextLength - OVERHEAD;
+    }
+
+    /**
+     * Encrypts {@code in[inOff, inOff + len)} and writes {@code IV || ciphertext || tag} to
+     * {@code out} starting at {@code outOff}. {@code in} and {@code out} may be the same array;
+     * placing the plaintext at {@code outOff + IV_LENGTH} encrypts in place.
+     *
+     * @return The number of bytes written, {@code len + OVERHEAD}.
+     * @throws GeneralSecurityException if encryption fails or {@code out} is too small.
+     */
+    public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        return encrypt(in, inOff, len, out, outOff, null);
+    }
+
+    /**
+     * Like {@link #encrypt(byte[], int, int, byte[], int)}, additionally authenticating {@code aad}
+     * (which is not encrypted or written). The same AAD must be passed to decrypt.
+     */
+    public int encrypt(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] aad)
+            throws GeneralSecurityException {
+        writeNonce(out, outOff);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, out, outOff, IV_LENGTH));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return IV_LENGTH + cipher.doFinal(in, inOff, len, out, outOff + IV_LENGTH);
+    }
+
+    /**
+     * Decrypts {@code IV || ciphertext || tag} from {@code in[inOff, inOff + len)} into {@code out}
+     * starting at {@code outOff}. {@code in} and {@code out} may be the same array.
+     *
+     * @return The number of plaintext bytes written, {@code len - OVERHEAD}.
+     * @throws AEADBadTagException if the message was tampered with or is truncated.
+     * @throws GeneralSecurityException if decryption fails or {@code out} is too small.
+     */
+    public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        return decrypt(in, inOff, len, out, outOff, null);
+    }
+
+    /**
+     * Like {@link #decrypt(byte[], int, int, byte[], int)}, additionally checking the {@code aad}
+     * that was passed to encrypt.
+     */
+    public int decrypt(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] aad)
+            throws GeneralSecurityException {
+        if (len < OVERHEAD) {
+            throw new AEADBadTagException("Encrypted message is shorter than IV and tag: " + len);
+        }
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, in, inOff, IV_LENGTH));
+        if (aad != null) {
+            cipher.updateAAD(aad);
+        }
+        return cipher.doFinal(in, inOff + IV_LENGTH, len - IV_LENGTH, out, outOff);
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code in} and appends {@code IV || ciphertext || tag} to {@code out}.
+     * Both buffers' positions advance past the consumed and produced bytes.
+     *
+     * @return The number of bytes written.
+     * @throws GeneralSecurityException if encryption fails or {@code out} has too little room.
+     */
+    public int encrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        if (out.remaining() < ciphertextLength(in.remaining())) {
+            throw new ShortBufferException("Output buffer needs " + ciphertextLength(in.remaining()) + " bytes");
+        }
+        byte[] iv = IV_SCRATCH.get();
+        writeNonce(iv, 0);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        out.put(iv);
+        return IV_LENGTH + cipher.doFinal(in, out);
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code in}, which must hold {@code IV || ciphertext || tag},
+     * and appends the plaintext to {@code out}.
+     *
+     * @return The number of plaintext bytes written.
+     * @throws AEADBadTagException if the message was tampered with or is truncated.
+     * @throws GeneralSecurityException if decryption fails or {@code out} has too little room.
+     */
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws GeneralSecurityException {
+        if (in.remaining() < OVERHEAD) {
+            throw new AEADBadTagException("Encrypted message is shorter than IV and tag: " + in.remaining());
+        }
+        byte[] iv = IV_SCRATCH.get();
+        in.get(iv);
+        Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        return cipher.doFinal(in, out);
+    }
+
+    private void writeNonce(byte[] out, int off) {
+        long value = counter.getAndIncrement();
+        out[off] = (byte) (noncePrefix >>> 24);
+        out[off + 1] = (byte) (noncePrefix >>> 16);
+        out[off + 2] = (byte) (noncePrefix >>> 8);
+        out[off + 3] = (byte) noncePrefix;
+        for (int i = 0; i < 8; i++) {
+            out[off + 4 + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    /** The calling thread's cached AES/GCM cipher, shared with the other AES-GCM helpers in this package. */
+    static Cipher cipher() {
+        return CIPHERS.get();
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Encrypts and decrypts files of any size with AES/GCM by splitting them into independently
+ * authenticated chunks.
+ *
+ * <p>The encrypted file layout is:
+ * <pre>
+ * header:  magic "AGCM" (4) | version (1) | reserved (3) | chunk size (4) | base nonce (12) | plaintext length (8)
+ * chunk i: ciphertext (chunk size, shorter for the last chunk) | tag (16)
+ * </pre>
+ * Chunk {@code i} is encrypted with the nonce {@code baseNonce XOR i} (counter in the low 8 bytes),
+ * and its AAD is the whole header followed by the 8-byte chunk index and a 1-byte final-chunk flag.
+ * Every chunk therefore authenticates the header and its own position, so edited headers and
+ * reordered, duplicated or dropped chunks all fail decryption. Truncation at a chunk boundary is caught
+ * by the final flag and the plaintext length in the header.
+ *
+ * <p>Both directions read and write through memory-mapped windows of at most 64 MB per task.
+ * Chunks are spread over a {@link ForkJoinPool}. Each leaf task allocates two chunk-sized buffers for the
+ * duration of its window and drops them afterwards, so heap use depends on the chunk size and parallelism,
+ * not on the file size, and nothing stays behind on the pool's threads between calls.
+ */
+public final class AesGcmFileEncryptor {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int HEADER_LENGTH = 32;
+
+    private static final int MAGIC = 0x4147434D; // "AGCM"
+    private static final byte VERSION = 1;
+    private static final int TAG_LENGTH = AesGcmEncryptor.TAG_LENGTH;
+    private static final int IV_LENGTH = AesGcmEncryptor.IV_LENGTH;
+    // Upper bound on the bytes a single leaf task maps from the source (and similarly the target)
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKey key;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+
+    public AesGcmFileEncryptor(SecretKey key) {
+        this(key, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param key       The AES key.
+     * @param chunkSize Plaintext bytes per chunk when encrypting. Decryption uses the size stored in the header.
+     * @param pool      The pool that chunks are processed on.
+     */
+    public AesGcmFileEncryptor(SecretKey key, int chunkSize, ForkJoinPool pool) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        this.key = key;
+        this.chunkSize = chunkSize;
+        this.pool = pool;
+    }
+
+    /** Size of the encrypted file for a plaintext of the given length. */
+    public static long encryptedLength(long plaintextLength, int chunkSize) {
+        return HEADER_LENGTH + plaintextLength + chunkCount(plaintextLength, chunkSize) * TAG_LENGTH;
+    }
+
+    // An empty file still gets one (empty, final) chunk so that it is authenticated
+    private static long chunkCount(long plaintextLength, int chunkSize) {
+        return Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Encrypts {@code source} into {@code target}, replacing any existing target file.
+     *
+     * @return The size of the encrypted file.
+     * @throws IOException if either file cannot be read or written.
+     * @throws GeneralSecurityException if encryption fails.
+     */
+    public long encrypt(Path source, Path target) throws IOException, GeneralSecurityException {
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(target, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+            long plaintextLength = in.size();
+            byte[] baseNonce = new byte[IV_LENGTH];
+            RANDOM.nextBytes(baseNonce);
+            byte[] header = header(chunkSize, baseNonce, plaintextLength);
+
+            Layout layout = new Layout(chunkSize, plaintextLength);
+            out.write(ByteBuffer.wrap(header), 0);
+            presize(out, layout.encryptedLength());
+            run(new ChunkTask(Cipher.ENCRYPT_MODE, layout, header, baseNonce, in, out, 0, layout.chunks));
+            return layout.encryptedLength();
+        }
+    }
+
+    /**
+     * Decrypts {@code source} into {@code target}, replacing any existing target file. If any chunk fails
+     * authentication the partially written target is deleted, so unauthenticated plaintext is never left behind.
+     *
+     * @return The size of the decrypted file.
+     * @throws AEADBadTagException if the file was tampered with, truncated or extended.
+     * @throws IOException if either file cannot be read or written, or {@code source} is not in this format.
+     * @throws GeneralSecurityException if decryption fails.
+     */
+    public long decrypt(Path source, Path target) throws IOException, GeneralSecurityException {
+        try (FileChannel in = FileChannel.open(source, READ)) {
+            ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+            while (headerBuffer.hasRemaining()) {
+                if (in.read(headerBuffer, headerBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            if (headerBuffer.hasRemaining()) {
+                throw new IOException("File is too short to be AES-GCM chunked: " + source);
+            }
+            headerBuffer.flip();
+            if (headerBuffer.getInt() != MAGIC) {
+                throw new IOException("Not an AES-GCM chunked file: " + source);
+            }
+            byte version = headerBuffer.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported AES-GCM chunked file version " + version + ": " + source);
+            }
+            headerBuffer.position(headerBuffer.position() + 3);
+            int storedChunkSize = headerBuffer.getInt();
+            byte[] baseNonce = new byte[IV_LENGTH];
+            headerBuffer.get(baseNonce);
+            long plaintextLength = headerBuffer.getLong();
+            if (storedChunkSize <= 0 || storedChunkSize > MAX_CHUNK_SIZE || plaintextLength < 0) {
+                throw new IOException("Corrupt AES-GCM chunked file header: " + source);
+            }
+
+            Layout layout = new Layout(storedChunkSize, plaintextLength);
+            if (in.size() != layout.encryptedLength()) {
+                throw new AEADBadTagException("Encrypted file is " + in.size() + " bytes, header says "
+                        + layout.encryptedLength() + " (truncated or extended)");
+            }
+
+            boolean success = false;
+            try (FileChannel out = FileChannel.open(target, CREATE, TRUNCATE_EXISTING, READ, WRITE)) {
+                presize(out, plaintextLength);
+                run(new ChunkTask(Cipher.DECRYPT_MODE, layout, headerBuffer.array(), baseNonce, in, out, 0, layout.chunks));
+                success = true;
+            } finally {
+                if (!success) {
+                    Files.deleteIfExists(target);
+                }
+            }
+            return plaintextLength;
+        }
+    }
+
+    private void run(ChunkTask task) throws IOException, GeneralSecurityException {
+        try {
+            pool.invoke(task);
+        } catch (RuntimeException e) {
+            // ForkJoinTask may rethrow a copy of the worker's exception; the original failure is in the cause chain
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) t;
+                }
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private long leafChunks(Layout layout) {
+        long perWindow = Math.max(1, WINDOW_BYTES / (layout.chunkSize + TAG_LENGTH));
+        // Several tasks per worker so that uneven progress still keeps every core busy
+        long perTask = (layout.chunks + pool.getParallelism() * 4L - 1) / (pool.getParallelism() * 4L);
+        return Math.max(1, Math.min(perWindow, perTask));
+    }
+
+    private static byte[] header(int chunkSize, byte[] baseNonce, long plaintextLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).put(VERSION).put(new byte[3]).putInt(chunkSize).put(baseNonce).putLong(plaintextLength);
+        return header.array();
+    }
+
+    // Grows the file to its final size up front so concurrent mappings never have to extend it
+    private static void presize(FileChannel channel, long length) throws IOException {
+        if (length > channel.size()) {
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+        }
+    }
+
+    private static final class Layout {
+        final int chunkSize;
+        final long plaintextLength;
+        final long chunks;
+
+        Layout(int chunkSize, long plaintextLength) {
+            this.chunkSize = chunkSize;
+            this.plaintextLength = plaintextLength;
+            this.chunks = chunkCount(plaintextLength, chunkSize);
+        }
+
+        long encryptedLength() {
+            return AesGcmFileEncryptor.encryptedLength(plaintextLength, chunkSize);
+        }
+
+        /** Plaintext offset where chunk {@code index} starts; {@code index == chunks} gives the end. */
+        long plainOffset(long index) {
+            return Math.min(index * chunkSize, plaintextLength);
+        }
+
+        long cipherOffset(long index) {
+            return HEADER_LENGTH + plainOffset(index) + index * TAG_LENGTH;
+        }
+
+        int plainLength(long index) {
+            return (int) (plainOffset(index + 1) - plainOffset(index));
+        }
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mode;
+        private final Layout layout;
+        private final byte[] header;
+        private final byte[] baseNonce;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long from;
+        private final long to;
+
+        ChunkTask(int mode, Layout layout, byte[] header, byte[] baseNonce,
+                  FileChannel in, FileChannel out, long from, long to) {
+            this.mode = mode;
+            this.layout = layout;
+            this.header = header;
+            this.baseNonce = baseNonce;
+            this.in = in;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > leafChunks(layout)) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new ChunkTask(mode, layout, header, baseNonce, in, out, from, middle),
+                        new ChunkTask(mode, layout, header, baseNonce, in, out, middle, to));
+                return;
+            }
+            try {
+                process();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                throw new ChunkFailure(e);
+            }
+        }
+
+        private void process() throws IOException, GeneralSecurityException {
+            boolean encrypting = mode == Cipher.ENCRYPT_MODE;
+            long plainStart = layout.plainOffset(from);
+            long plainEnd = layout.plainOffset(to);
+            long cipherStart = layout.cipherOffset(from);
+            long cipherEnd = layout.cipherOffset(to);
+
+            MappedByteBuffer source = encrypting
+                    ? in.map(FileChannel.MapMode.READ_ONLY, plainStart, plainEnd - plainStart)
+                    : in.map(FileChannel.MapMode.READ_ONLY, cipherStart, cipherEnd - cipherStart);
+            MappedByteBuffer target = encrypting
+                    ? out.map(FileChannel.MapMode.READ_WRITE, cipherStart, cipherEnd - cipherStart)
+                    : out.map(FileChannel.MapMode.READ_WRITE, plainStart, plainEnd - plainStart);
+
+            ChunkBuffers buffers = new ChunkBuffers(layout.chunkSize + TAG_LENGTH);
+            Cipher cipher = AesGcmEncryptor.cipher();
+            for (long index = from; index < to; index++) {
+                int plainLength = layout.plainLength(index);
+                int inputLength = encrypting ? plainLength : plainLength + TAG_LENGTH;
+                source.get(buffers.input, 0, inputLength);
+
+                nonce(index, buffers.nonce);
+                chunkAad(index, index == layout.chunks - 1, buffers.aad);
+                cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, buffers.nonce));
+                cipher.updateAAD(header);
+                cipher.updateAAD(buffers.aad);
+                int outputLength = cipher.doFinal(buffers.input, 0, inputLength, buffers.output, 0);
+                target.put(buffers.output, 0, outputLength);
+            }
+        }
+
+        private void nonce(long index, byte[] nonce) {
+            System.arraycopy(baseNonce, 0, nonce, 0, IV_LENGTH);
+            for (int i = 0; i < 8; i++) {
+                nonce[IV_LENGTH - 1 - i] ^= (byte) (index >>> (8 * i));
+            }
+        }
+
+        private void chunkAad(long index, boolean last, byte[] aad) {
+            for (int i = 0; i < 8; i++) {
+                aad[i] = (byte) (index >>> (56 - 8 * i));
+            }
+            aad[8] = (byte) (last ? 1 : 0);
+        }
+    }
+
+    private static final class ChunkBuffers {
+        final byte[] nonce = new byte[IV_LENGTH];
+        final byte[] aad = new byte[9];
+        final byte[] input;
+        final byte[] output;
+
+        ChunkBuffers(int size) {
+            input = new byte[size];
+            output = new byte[size];
+        }
+    }
+
+    private static final class ChunkFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkFailure(GeneralSecurityException cause) {
+            super(cause);
+        }
+    }
+}
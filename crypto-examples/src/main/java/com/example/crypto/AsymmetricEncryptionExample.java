@@ -1,75 +1,150 @@
 package com.example.crypto;
 
-import javax.crypto.Cipher;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Demonstrates asymmetric encryption and decryption using RSA.
  * In this system, a message is encrypted with a public key and can only be
  * decrypted with the corresponding private key.
+ * <p>
+ * RSA alone can only encrypt a few hundred bytes and every operation is expensive, so messages are
+ * sealed in a {@link HybridEnvelope}: an RSA-OAEP-wrapped AES data key plus an AES-GCM payload.
+ * Repeated calls reuse the sender's session and the receiver's unwrapped data key, so after the first
+ * message each call runs at AES-GCM speed.
  */
 public class AsymmetricEncryptionExample {
 
-    private static final String ALGORITHM = "RSA";
+    // Messages sealed under one data key before the sender starts a new session
+    private static final long MESSAGES_PER_SESSION = 1_000_000;
+
+    // The last session and opener each thread used, reused while the key stays the same
+    private static final ThreadLocal<SessionEntry> SESSIONS = new ThreadLocal<>();
+    private static final ThreadLocal<HybridEnvelope.Opener> OPENERS = new ThreadLocal<>();
 
     /**
      * Encrypts a plaintext using a public key.
      *
-     * @param plainText The plaintext to encrypt.
+     * @param plainText The plaintext to encrypt, of any length.
      * @param publicKey The public key to use for encryption.
-     * @return A Base64-encoded string of the ciphertext.
+     * @return A Base64-encoded envelope with the wrapped data key and the ciphertext.
      * @throws Exception if encryption fails.
      */
     public static String encrypt(String plainText, PublicKey publicKey) throws Exception {
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-        byte[] cipherText = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(cipherText);
+        byte[] envelope = sessionFor(publicKey).seal(plainText.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(envelope);
+    }
+
+    /**
+     * Encrypts a plaintext once for several recipients; each of their private keys can decrypt it.
+     *
+     * @param plainText  The plaintext to encrypt, of any length.
+     * @param recipients The public keys of the recipients.
+     * @return A Base64-encoded envelope with one wrapped data key per recipient.
+     * @throws Exception if encryption fails.
+     */
+    public static String encrypt(String plainText, PublicKey... recipients) throws Exception {
+        byte[] envelope = HybridEnvelope.newSession(recipients).seal(plainText.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(envelope);
     }
 
     /**
      * Decrypts a ciphertext using a private key.
      *
-     * @param cipherTextBase64 The Base64-encoded ciphertext.
+     * @param cipherTextBase64 The Base64-encoded envelope.
      * @param privateKey The private key to use for decryption.
      * @return The original plaintext.
      * @throws Exception if decryption fails.
      */
     public static String decrypt(String cipherTextBase64, PrivateKey privateKey) throws Exception {
-        byte[] cipherText = Base64.getDecoder().decode(cipherTextBase64);
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        cipher.init(Cipher.DECRYPT_MODE, privateKey);
-        byte[] decryptedText = cipher.doFinal(cipherText);
+        byte[] envelope = Base64.getDecoder().decode(cipherTextBase64);
+        byte[] decryptedText = openerFor(privateKey).open(envelope);
         return new String(decryptedText, StandardCharsets.UTF_8);
     }
 
+    private static HybridEnvelope.Session sessionFor(PublicKey publicKey) throws Exception {
+        SessionEntry entry = SESSIONS.get();
+        if (entry == null || !entry.publicKey.equals(publicKey)
+                || entry.session.sealedCount() >= MESSAGES_PER_SESSION) {
+            entry = new SessionEntry(publicKey, HybridEnvelope.newSession(publicKey));
+            SESSIONS.set(entry);
+        }
+        return entry.session;
+    }
+
+    private static HybridEnvelope.Opener openerFor(PrivateKey privateKey) throws Exception {
+        HybridEnvelope.Opener opener = OPENERS.get();
+        if (opener == null || !opener.getPrivateKey().equals(privateKey)) {
+            opener = new HybridEnvelope.Opener(privateKey);
+            OPENERS.set(opener);
+        }
+        return opener;
+    }
+
+    private static final class SessionEntry {
+        final PublicKey publicKey;
+        final HybridEnvelope.Session session;
+
+        SessionEntry(PublicKey publicKey, HybridEnvelope.Session session) {
+            this.publicKey = publicKey;
+            this.session = session;
+        }
+    }
 
     public static void main(String[] args) throws Exception {
-        // 1. Generate a key pair (public and private key)
-        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(ALGORITHM);
-        keyPairGenerator.initialize(2048); // Key size
-        KeyPair keyPair = keyPairGenerator.generateKeyPair();
-        PublicKey publicKey = keyPair.getPublic();
-        PrivateKey privateKey = keyPair.getPrivate();
-
-        // 2. Define a plaintext message
-        String originalMessage = "This is a secret message for asymmetric encryption!";
-        System.out.println("Original Message: " + originalMessage);
-
-        // 3. Encrypt the message using the public key
-        String encryptedMessage = encrypt(originalMessage, publicKey);
-        System.out.println("Encrypted Message (Base64): " + encryptedMessage);
-
-        // 4. Decrypt the message using the private key
-        String decryptedMessage = decrypt(encryptedMessage, privateKey);
-        System.out.println("Decrypted Message: " + decryptedMessage);
-
-        // Verification
-        System.out.println("\nVerification Successful: " + originalMessage.equals(decryptedMessage));
+        // 1. Take a key pair (public and private key) from a pool that pre-generates them in the background
+        try (KeyPairPool keyPairPool = KeyPairPool.rsa(2048, 2, 8, 2)) { // Key size, low and high watermarks, threads
+            // Wait for the first background key pair so that take() below does not generate one inline
+            keyPairPool.awaitDepth(1, 10, TimeUnit.SECONDS);
+            KeyPair keyPair = keyPairPool.take();
+            PublicKey publicKey = keyPair.getPublic();
+            PrivateKey privateKey = keyPair.getPrivate();
+
+            // 2. Define a plaintext message
+            String originalMessage = "This is a secret message for asymmetric encryption!";
+            System.out.println("Original Message: " + originalMessage);
+
+            // 3. Encrypt the message using the public key
+            String encryptedMessage = encrypt(originalMessage, publicKey);
+            System.out.println("Encrypted Message (Base64): " + encryptedMessage);
+
+            // 4. Decrypt the message using the private key
+            String decryptedMessage = decrypt(encryptedMessage, privateKey);
+            System.out.println("Decrypted Message: " + decryptedMessage);
+
+            // Verification
+            System.out.println("\nVerification Successful: " + originalMessage.equals(decryptedMessage));
+
+            // 5. Many messages in one session: the data key is wrapped and unwrapped only once
+            HybridEnvelope.Session session = HybridEnvelope.newSession(publicKey);
+            HybridEnvelope.Opener opener = new HybridEnvelope.Opener(keyPair);
+            byte[] longMessage = originalMessage.repeat(100).getBytes(StandardCharsets.UTF_8);
+            boolean allMatch = true;
+            for (int i = 0; i < 1000; i++) {
+                allMatch &= Arrays.equals(longMessage, opener.open(session.seal(longMessage)));
+            }
+            System.out.println("Session Messages (" + longMessage.length + " bytes each) Successful: " + allMatch
+                    + ", RSA unwraps: " + opener.unwrapCount() + ", cache hits: " + opener.cacheHitCount());
+
+            // 6. One envelope for two recipients: the payload is encrypted once, the data key wrapped twice
+            KeyPair otherKeyPair = keyPairPool.take();
+            String sharedMessage = encrypt(originalMessage, publicKey, otherKeyPair.getPublic());
+            System.out.println("Multi-Recipient Decryption Successful: "
+                    + (originalMessage.equals(decrypt(sharedMessage, privateKey))
+                    && originalMessage.equals(decrypt(sharedMessage, otherKeyPair.getPrivate()))));
+
+            // 7. Provision per-session keys from the warmed-up pool
+            keyPairPool.awaitDepth(4, 10, TimeUnit.SECONDS);
+            long start = System.nanoTime();
+            for (int i = 0; i < 4; i++) {
+                keyPairPool.take();
+            }
+            System.out.printf("Took 4 session key pairs in %.3f ms: %s%n", (System.nanoTime() - start) / 1e6, keyPairPool);
+        }
     }
 } 
\ No newline at end of file
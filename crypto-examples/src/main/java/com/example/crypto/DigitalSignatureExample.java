@@ -1,22 +1,30 @@
 package com.example.crypto;
 
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.Signature;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 /**
- * Demonstrates how to create and verify a digital signature using RSA.
+ * Demonstrates how to create and verify a digital signature.
  * A digital signature ensures data integrity and authenticity.
  * The data is signed with a private key, and the signature is verified
  * with the corresponding public key.
+ * <p>
+ * Signatures are tagged with their {@link SignatureAlgorithm}, so the algorithm is picked from the
+ * signing key (RSA, EC or Ed25519) and verification works for any mix of them. Untagged SHA256withRSA
+ * signatures issued before tagging are still accepted by the verify methods here.
  */
 public class DigitalSignatureExample {
 
-    private static final String SIGNING_ALGORITHM = "SHA256withRSA";
+    // Duration of each timed loop in the algorithm comparison
+    private static final long COMPARISON_NANOS = 1_000_000_000L;
 
     /**
      * Creates a digital signature for the given data using a private key.
@@ -27,11 +35,21 @@ public class DigitalSignatureExample {
      * @throws Exception if signing fails.
      */
     public static String sign(String plainText, PrivateKey privateKey) throws Exception {
-        Signature privateSignature = Signature.getInstance(SIGNING_ALGORITHM);
-        privateSignature.initSign(privateKey);
-        privateSignature.update(plainText.getBytes(StandardCharsets.UTF_8));
+        byte[] signature = sign(plainText.getBytes(StandardCharsets.UTF_8), privateKey);
+        return Base64.getEncoder().encodeToString(signature);
+    }
 
-        byte[] signature = privateSignature.sign();
+    /**
+     * Creates a digital signature with an explicitly chosen algorithm.
+     *
+     * @param plainText  The data to sign.
+     * @param privateKey The private key to use for signing; must suit {@code algorithm}.
+     * @param algorithm  The signature algorithm.
+     * @return A Base64-encoded string of the tagged signature.
+     * @throws Exception if signing fails.
+     */
+    public static String sign(String plainText, PrivateKey privateKey, SignatureAlgorithm algorithm) throws Exception {
+        byte[] signature = algorithm.sign(plainText.getBytes(StandardCharsets.UTF_8), privateKey);
         return Base64.getEncoder().encodeToString(signature);
     }
 
@@ -46,42 +64,187 @@ public class DigitalSignatureExample {
      */
     public static boolean verify(String plainText, String signatureBase64, PublicKey publicKey) throws Exception {
         byte[] signature = Base64.getDecoder().decode(signatureBase64);
+        return verify(plainText.getBytes(StandardCharsets.UTF_8), signature, publicKey);
+    }
 
-        Signature publicSignature = Signature.getInstance(SIGNING_ALGORITHM);
-        publicSignature.initVerify(publicKey);
-        publicSignature.update(plainText.getBytes(StandardCharsets.UTF_8));
+    /**
+     * Signs raw bytes with the default algorithm for the key (see {@link SignatureAlgorithm#forKey}).
+     *
+     * @return The tagged signature.
+     * @throws GeneralSecurityException if signing fails.
+     */
+    public static byte[] sign(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+        return SignatureAlgorithm.forKey(privateKey).sign(data, privateKey);
+    }
 
-        return publicSignature.verify(signature);
+    /**
+     * Verifies a tagged signature over raw bytes with the algorithm named by its tag, or a legacy untagged
+     * SHA256withRSA signature (see {@link SignatureAlgorithm#verifyTaggedOrLegacy}).
+     *
+     * @return True if the signature is valid; false if it is wrong, malformed or has an unknown tag.
+     * @throws GeneralSecurityException if the key cannot be used for verification.
+     */
+    public static boolean verify(byte[] data, byte[] signature, PublicKey publicKey) throws GeneralSecurityException {
+        return SignatureAlgorithm.verifyTaggedOrLegacy(data, signature, publicKey);
+    }
+
+    /**
+     * Verifies a batch of signatures in parallel on the common fork-join pool. Each worker thread uses
+     * its own cached {@link java.security.Signature} engine.
+     *
+     * @param messages   The signed data.
+     * @param signatures The signatures, in the same order as {@code messages}.
+     * @param publicKey  The public key to use for verification.
+     * @return One result per message: true if its signature is valid.
+     * @throws GeneralSecurityException if the key cannot be used for verification.
+     */
+    public static boolean[] verifyBatch(List<byte[]> messages, List<byte[]> signatures, PublicKey publicKey)
+            throws GeneralSecurityException {
+        if (messages.size() != signatures.size()) {
+            throw new IllegalArgumentException(messages.size() + " messages but " + signatures.size() + " signatures");
+        }
+        boolean[] results = new boolean[messages.size()];
+        try {
+            IntStream.range(0, results.length).parallel().forEach(i -> {
+                try {
+                    results[i] = verify(messages.get(i), signatures.get(i), publicKey);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            // The stream may rethrow a copy of the worker's exception, so search the whole cause chain
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (t instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) t;
+                }
+            }
+            throw e;
+        }
+        return results;
     }
 
     public static void main(String[] args) throws Exception {
-        // 1. Generate a key pair
-        // 1. 生成密钥对
-        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-        keyPairGenerator.initialize(2048);
-        KeyPair keyPair = keyPairGenerator.generateKeyPair();
-        PublicKey publicKey = keyPair.getPublic();
-        PrivateKey privateKey = keyPair.getPrivate();
-
-        // 2. Define the data to be signed
-        // 2. 定义要签名的数据
-        String originalMessage = "This message will be signed to ensure its integrity.";
-        System.out.println("Original Message: " + originalMessage);
-
-        // 3. Sign the data with the private key
-        // 3. 使用私钥对数据进行签名
-        String signature = sign(originalMessage, privateKey);
-        System.out.println("Signature (Base64): " + signature);
-
-        // 4. Verify the signature with the public key
-        // 4. 使用公钥验证签名
-        boolean isSignatureValid = verify(originalMessage, signature, publicKey);
-        System.out.println("\nVerification with original data: " + isSignatureValid);
-
-        // 5. Attempt to verify with tampered data (demonstrates failure)
-        // 5. 尝试使用被篡改的数据验证签名（演示验证失败）
-        String tamperedMessage = "This message has been tampered with!";
-        boolean isTamperedSignatureValid = verify(tamperedMessage, signature, publicKey);
-        System.out.println("Verification with tampered data: " + isTamperedSignatureValid);
+        // 1. Generate a key pair for the chosen algorithm (ECDSA P-256 unless given as the first argument;
+        //    Ed25519 needs Java 15, this module targets Java 11)
+        // 1. 按所选算法生成密钥对（默认 ECDSA P-256，可通过第一个参数指定；Ed25519 需要 Java 15）
+        SignatureAlgorithm algorithm = args.length > 0 ? SignatureAlgorithm.valueOf(args[0]) : SignatureAlgorithm.ECDSA_P256;
+        System.out.println("Algorithm: " + algorithm);
+        try (KeyPairPool keyPairPool = KeyPairPool.of(algorithm, 1, 4, 1)) {
+            // Wait for the first background key pair so that take() below does not generate one inline
+            // 等后台线程生成第一个密钥对，下面的 take() 不必在调用线程里现场生成
+            keyPairPool.awaitDepth(1, 10, TimeUnit.SECONDS);
+            KeyPair keyPair = keyPairPool.take();
+            PublicKey publicKey = keyPair.getPublic();
+            PrivateKey privateKey = keyPair.getPrivate();
+
+            // 2. Define the data to be signed
+            // 2. 定义要签名的数据
+            String originalMessage = "This message will be signed to ensure its integrity.";
+            System.out.println("Original Message: " + originalMessage);
+
+            // 3. Sign the data with the private key
+            // 3. 使用私钥对数据进行签名
+            String signature = sign(originalMessage, privateKey, algorithm);
+            System.out.println("Signature (Base64): " + signature);
+
+            // 4. Verify the signature with the public key
+            // 4. 使用公钥验证签名
+            boolean isSignatureValid = verify(originalMessage, signature, publicKey);
+            System.out.println("\nVerification with original data: " + isSignatureValid);
+
+            // 5. Attempt to verify with tampered data (demonstrates failure)
+            // 5. 尝试使用被篡改的数据验证签名（演示验证失败）
+            String tamperedMessage = "This message has been tampered with!";
+            boolean isTamperedSignatureValid = verify(tamperedMessage, signature, publicKey);
+            System.out.println("Verification with tampered data: " + isTamperedSignatureValid);
+
+            // 6. Verify a burst of signatures in parallel
+            // 6. 并行批量验证一批签名
+            int batchSize = 2000;
+            List<byte[]> messages = new ArrayList<>(batchSize);
+            List<byte[]> signatures = new ArrayList<>(batchSize);
+            for (int i = 0; i < batchSize; i++) {
+                byte[] message = ("event-" + i).getBytes(StandardCharsets.UTF_8);
+                messages.add(message);
+                signatures.add(algorithm.sign(message, privateKey));
+            }
+            signatures.set(7, signatures.get(8)); // one bad signature
+            long start = System.nanoTime();
+            boolean[] results = verifyBatch(messages, signatures, publicKey);
+            long elapsed = System.nanoTime() - start;
+            int valid = 0;
+            for (boolean result : results) {
+                valid += result ? 1 : 0;
+            }
+            System.out.printf("%nBatch verification: %d/%d valid in %.1f ms%n", valid, batchSize, elapsed / 1e6);
+
+            // 7. Sign the whole batch with one signing operation over a Merkle root
+            // 7. 对整批消息的 Merkle 根只做一次签名，每条消息附带包含证明
+            start = System.nanoTime();
+            MerkleBatchSigner.SignedBatch batch = MerkleBatchSigner.sign(messages, privateKey, algorithm);
+            elapsed = System.nanoTime() - start;
+            MerkleBatchSigner.InclusionProof proof = batch.proof(42);
+            System.out.printf("Merkle batch signed in %.1f ms, proof size %d bytes%n",
+                    elapsed / 1e6, proof.encode().length);
+            System.out.println("Merkle proof for message 42: "
+                    + MerkleBatchSigner.verify(messages.get(42), proof, batch.rootSignature(), publicKey));
+            System.out.println("Merkle proof with wrong message: "
+                    + MerkleBatchSigner.verify(messages.get(43), proof, batch.rootSignature(), publicKey));
+
+            // 8. Compare sign/verify throughput and signature sizes across algorithms
+            // 8. 比较各算法的签名/验签速度和签名大小
+            compareAlgorithms();
+
+            // 9. Signing keys for new sessions come from the pool without waiting for generation
+            // 9. 新会话的签名密钥直接从预生成的密钥池中获取，无需等待生成
+            keyPairPool.awaitDepth(4, 10, TimeUnit.SECONDS);
+            long takeStart = System.nanoTime();
+            KeyPair sessionKeyPair = keyPairPool.take();
+            System.out.printf("%nSession key pair taken in %.3f ms, signature valid: %s%n%s%n",
+                    (System.nanoTime() - takeStart) / 1e6,
+                    verify(originalMessage, sign(originalMessage, sessionKeyPair.getPrivate(), algorithm),
+                            sessionKeyPair.getPublic()),
+                    keyPairPool);
+        }
+    }
+
+    /**
+     * Prints single-threaded sign and verify operations per second and signature and public key sizes
+     * for every algorithm the running JDK supports.
+     */
+    public static void compareAlgorithms() throws GeneralSecurityException {
+        byte[] data = "A representative event payload for signing.".getBytes(StandardCharsets.UTF_8);
+        System.out.printf("%n%-12s %12s %12s %10s %10s%n", "Algorithm", "sign/s", "verify/s", "sig bytes", "key bytes");
+        for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+            if (!algorithm.isAvailable()) {
+                System.out.printf("%-12s not available in this JDK%n", algorithm);
+                continue;
+            }
+            KeyPair keyPair = algorithm.generateKeyPair();
+            byte[] signature = algorithm.sign(data, keyPair.getPrivate());
+
+            long signs = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                algorithm.sign(data, keyPair.getPrivate());
+                signs++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < COMPARISON_NANOS);
+            double signRate = signs / (elapsed / 1e9);
+
+            long verifies = 0;
+            start = System.nanoTime();
+            do {
+                algorithm.verify(data, signature, keyPair.getPublic());
+                verifies++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < COMPARISON_NANOS);
+            double verifyRate = verifies / (elapsed / 1e9);
+
+            System.out.printf("%-12s %12.0f %12.0f %10d %10d%n", algorithm, signRate, verifyRate,
+                    signature.length, keyPair.getPublic().getEncoded().length);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,247 @@
+package com.example.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid RSA + AES envelope encryption.
+ *
+ * <p>The sender generates a random AES-256 data key, wraps it once per recipient with RSA-OAEP
+ * (SHA-256, MGF1-SHA-256) and encrypts the payload once with AES/GCM. The envelope layout is:
+ * <pre>
+ * header:  version (1) | recipient count (2) | { key id (32) | wrapped key length (2) | wrapped key } * count
+ * payload: IV (12) | ciphertext | tag (16)
+ * </pre>
+ * The key id is the SHA-256 fingerprint of the recipient's encoded public key, and the whole header
+ * is the AAD of the payload, so recipients cannot be added, removed or swapped without detection.
+ *
+ * <p>A {@link Session} reuses one data key and one set of wrapped keys for many messages, so sealing
+ * costs only AES-GCM. An {@link Opener} caches unwrapped data keys by their wrapped bytes, so each
+ * session costs the receiver a single RSA private-key operation.
+ */
+public final class HybridEnvelope {
+
+    private static final String WRAP_ALGORITHM = "RSA/ECB/OAEPPadding";
+    // Explicit parameters: the provider default for "OAEPPadding" is SHA-1 with MGF1-SHA-1
+    private static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec(
+            "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+    private static final byte VERSION = 1;
+    private static final int KEY_ID_LENGTH = 32;
+    private static final int DATA_KEY_BITS = 256;
+
+    private HybridEnvelope() {
+    }
+
+    /**
+     * Starts a session that seals messages for the given recipients with a fresh data key.
+     *
+     * @throws GeneralSecurityException if key generation or wrapping fails.
+     */
+    public static Session newSession(PublicKey... recipients) throws GeneralSecurityException {
+        if (recipients.length == 0 || recipients.length > 0xFFFF) {
+            throw new IllegalArgumentException("Envelope needs 1 to 65535 recipients: " + recipients.length);
+        }
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(DATA_KEY_BITS);
+        SecretKey dataKey = keyGenerator.generateKey();
+
+        Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+        byte[][] keyIds = new byte[recipients.length][];
+        byte[][] wrappedKeys = new byte[recipients.length][];
+        int headerLength = 3;
+        for (int i = 0; i < recipients.length; i++) {
+            cipher.init(Cipher.WRAP_MODE, recipients[i], OAEP_SHA256);
+            keyIds[i] = keyId(recipients[i]);
+            wrappedKeys[i] = cipher.wrap(dataKey);
+            headerLength += KEY_ID_LENGTH + 2 + wrappedKeys[i].length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.put(VERSION).putShort((short) recipients.length);
+        for (int i = 0; i < recipients.length; i++) {
+            header.put(keyIds[i]).putShort((short) wrappedKeys[i].length).put(wrappedKeys[i]);
+        }
+        return new Session(new AesGcmEncryptor(dataKey), header.array());
+    }
+
+    /** SHA-256 fingerprint of an encoded public key, used to find a recipient's entry in the header. */
+    public static byte[] keyId(PublicKey publicKey) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+    }
+
+    /**
+     * Seals messages for a fixed set of recipients under one data key. Thread-safe.
+     */
+    public static final class Session {
+        private final AesGcmEncryptor encryptor;
+        private final byte[] header;
+        private final AtomicLong sealed = new AtomicLong();
+
+        private Session(AesGcmEncryptor encryptor, byte[] header) {
+            this.encryptor = encryptor;
+            this.header = header;
+        }
+
+        /**
+         * Encrypts {@code plainText} into a complete envelope.
+         *
+         * @throws GeneralSecurityException if encryption fails.
+         */
+        public byte[] seal(byte[] plainText) throws GeneralSecurityException {
+            byte[] envelope = new byte[header.length + AesGcmEncryptor.ciphertextLength(plainText.length)];
+            System.arraycopy(header, 0, envelope, 0, header.length);
+            encryptor.encrypt(plainText, 0, plainText.length, envelope, header.length, header);
+            sealed.incrementAndGet();
+            return envelope;
+        }
+
+        /** Number of messages sealed so far, for callers that rotate sessions. */
+        public long sealedCount() {
+            return sealed.get();
+        }
+    }
+
+    /**
+     * Opens envelopes addressed to one RSA key pair, caching unwrapped data keys. Thread-safe.
+     */
+    public static final class Opener {
+        public static final int DEFAULT_CACHE_SIZE = 1024;
+
+        private final PrivateKey privateKey;
+        private final byte[] keyId;
+        private final Map<ByteBuffer, AesGcmEncryptor> dataKeys;
+        private final AtomicLong unwraps = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+
+        public Opener(KeyPair keyPair) throws GeneralSecurityException {
+            this(keyPair.getPrivate(), keyId(keyPair.getPublic()), DEFAULT_CACHE_SIZE);
+        }
+
+        /**
+         * Opener for a private key alone. The key id is derived from the public modulus and exponent
+         * that an RSA CRT private key carries.
+         *
+         * @throws InvalidKeyException if {@code privateKey} is not an RSA CRT key.
+         */
+        public Opener(PrivateKey privateKey) throws GeneralSecurityException {
+            this(privateKey, keyId(publicKeyOf(privateKey)), DEFAULT_CACHE_SIZE);
+        }
+
+        private Opener(PrivateKey privateKey, byte[] keyId, int cacheSize) {
+            this.privateKey = privateKey;
+            this.keyId = keyId;
+            // Access-ordered LinkedHashMap as a small LRU of data keys
+            this.dataKeys = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, AesGcmEncryptor> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        public PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        /**
+         * Decrypts an envelope produced by {@link Session#seal}.
+         *
+         * @throws InvalidKeyException if the envelope has no entry for this key pair.
+         * @throws GeneralSecurityException if the envelope is malformed or fails authentication.
+         */
+        public byte[] open(byte[] envelope) throws GeneralSecurityException {
+            ByteBuffer in = ByteBuffer.wrap(envelope);
+            try {
+                byte version = in.get();
+                if (version != VERSION) {
+                    throw new GeneralSecurityException("Unsupported envelope version " + version);
+                }
+                int recipients = Short.toUnsignedInt(in.getShort());
+                int wrappedOffset = -1;
+                int wrappedLength = 0;
+                for (int i = 0; i < recipients; i++) {
+                    int idOffset = in.position();
+                    in.position(idOffset + KEY_ID_LENGTH);
+                    int length = Short.toUnsignedInt(in.getShort());
+                    if (wrappedOffset < 0 && Arrays.equals(envelope, idOffset, idOffset + KEY_ID_LENGTH,
+                            keyId, 0, KEY_ID_LENGTH)) {
+                        wrappedOffset = in.position();
+                        wrappedLength = length;
+                    }
+                    in.position(in.position() + length);
+                }
+                if (wrappedOffset < 0) {
+                    throw new InvalidKeyException("Envelope is not addressed to this key");
+                }
+
+                int headerLength = in.position();
+                AesGcmEncryptor encryptor = dataKey(envelope, wrappedOffset, wrappedLength);
+                byte[] plainText = new byte[Math.max(0, AesGcmEncryptor.plaintextLength(envelope.length - headerLength))];
+                encryptor.decrypt(envelope, headerLength, envelope.length - headerLength, plainText, 0,
+                        Arrays.copyOf(envelope, headerLength));
+                return plainText;
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                throw new GeneralSecurityException("Truncated envelope header", e);
+            }
+        }
+
+        /** RSA unwraps performed, i.e. data-key cache misses. */
+        public long unwrapCount() {
+            return unwraps.get();
+        }
+
+        public long cacheHitCount() {
+            return cacheHits.get();
+        }
+
+        private AesGcmEncryptor dataKey(byte[] envelope, int offset, int length) throws GeneralSecurityException {
+            // Lookups wrap the envelope in place; only cache misses copy the wrapped key
+            ByteBuffer wrapped = ByteBuffer.wrap(envelope, offset, length);
+            synchronized (dataKeys) {
+                AesGcmEncryptor cached = dataKeys.get(wrapped);
+                if (cached != null) {
+                    cacheHits.incrementAndGet();
+                    return cached;
+                }
+            }
+            Cipher cipher = Cipher.getInstance(WRAP_ALGORITHM);
+            cipher.init(Cipher.UNWRAP_MODE, privateKey, OAEP_SHA256);
+            SecretKey dataKey = (SecretKey) cipher.unwrap(
+                    Arrays.copyOfRange(envelope, offset, offset + length), "AES", Cipher.SECRET_KEY);
+            unwraps.incrementAndGet();
+            AesGcmEncryptor encryptor = new AesGcmEncryptor(dataKey);
+            synchronized (dataKeys) {
+                dataKeys.put(ByteBuffer.wrap(Arrays.copyOfRange(envelope, offset, offset + length)), encryptor);
+            }
+            return encryptor;
+        }
+
+        private static PublicKey publicKeyOf(PrivateKey privateKey) throws GeneralSecurityException {
+            if (!(privateKey instanceof RSAPrivateCrtKey)) {
+                throw new InvalidKeyException("Cannot derive the public key from " + privateKey.getClass().getName());
+            }
+            RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) privateKey;
+            return KeyFactory.getInstance("RSA")
+                    .generatePublic(new RSAPublicKeySpec(crtKey.getModulus(), crtKey.getPublicExponent()));
+        }
+    }
+}
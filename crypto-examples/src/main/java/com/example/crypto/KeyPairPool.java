@@ -0,0 +1,250 @@
+package com.example.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of pre-generated key pairs, refilled by background threads so that consumers do not pay
+ * key generation latency (tens to hundreds of milliseconds for RSA) on the request path.
+ *
+ * <p>Refilling uses two watermarks. When a consumer drains the pool to {@code lowWatermark} or below,
+ * the generator threads wake and fill it back up to {@code highWatermark}, then go idle again.
+ * If the pool is empty, the consumer generates a key pair itself rather than queueing behind the
+ * background threads. That counts as a wait in the metrics.
+ *
+ * <p>Each key pair is handed out at most once. Close the pool to stop its threads.
+ */
+public final class KeyPairPool implements AutoCloseable {
+
+    /** Produces one key pair; called concurrently from the generator threads and from waiting consumers. */
+    @FunctionalInterface
+    public interface KeyPairFactory {
+        KeyPair generate() throws GeneralSecurityException;
+    }
+
+    private final KeyPairFactory factory;
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final BlockingQueue<KeyPair> keys;
+    private final Thread[] generators;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition refillNeeded = lock.newCondition();
+    private final Condition keyAdded = lock.newCondition();
+    private boolean refilling = true;
+    private volatile boolean closed;
+
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Creates a pool and starts filling it to {@code highWatermark} straight away.
+     *
+     * @param factory       Generates the key pairs.
+     * @param lowWatermark  Depth at or below which refilling starts.
+     * @param highWatermark Depth at which refilling stops; also the pool's capacity.
+     * @param threads       Number of background generator threads.
+     */
+    public KeyPairPool(KeyPairFactory factory, int lowWatermark, int highWatermark, int threads) {
+        if (lowWatermark < 0 || highWatermark <= lowWatermark || threads <= 0) {
+            throw new IllegalArgumentException("Need 0 <= low < high and threads > 0: low=" + lowWatermark
+                    + ", high=" + highWatermark + ", threads=" + threads);
+        }
+        this.factory = factory;
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.keys = new ArrayBlockingQueue<>(highWatermark);
+        this.generators = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            generators[i] = new Thread(this::generate, "key-pair-pool-" + i);
+            generators[i].setDaemon(true);
+            generators[i].start();
+        }
+    }
+
+    /** A pool of RSA key pairs of the given size. */
+    public static KeyPairPool rsa(int keySize, int lowWatermark, int highWatermark, int threads) {
+        return new KeyPairPool(() -> {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(keySize);
+            return generator.generateKeyPair();
+        }, lowWatermark, highWatermark, threads);
+    }
+
+    /** A pool of key pairs for a signature algorithm. */
+    public static KeyPairPool of(SignatureAlgorithm algorithm, int lowWatermark, int highWatermark, int threads) {
+        return new KeyPairPool(algorithm::generateKeyPair, lowWatermark, highWatermark, threads);
+    }
+
+    /**
+     * Takes a key pair from the pool, generating one in the calling thread if the pool is empty.
+     *
+     * @throws GeneralSecurityException if the pool was empty and generation failed.
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        if (closed) {
+            throw new IllegalStateException("Key pair pool is closed");
+        }
+        KeyPair keyPair = keys.poll();
+        if (keyPair == null) {
+            requestRefill();
+            long start = System.nanoTime();
+            keyPair = factory.generate();
+            long waited = System.nanoTime() - start;
+            waits.incrementAndGet();
+            waitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        } else if (keys.size() <= lowWatermark) {
+            requestRefill();
+        }
+        served.incrementAndGet();
+        return keyPair;
+    }
+
+    /**
+     * Waits until the pool holds at least {@code depth} key pairs, e.g. to warm it up before serving traffic.
+     *
+     * @return True if the depth was reached before the timeout.
+     */
+    public boolean awaitDepth(int depth, long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (keys.size() < Math.min(depth, highWatermark)) {
+                if (remaining <= 0 || closed) {
+                    return false;
+                }
+                remaining = keyAdded.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Key pairs currently ready to be taken. */
+    public int depth() {
+        return keys.size();
+    }
+
+    /** Key pairs generated by the background threads. */
+    public long generatedCount() {
+        return generated.get();
+    }
+
+    /** Key pairs handed out by {@link #take()}, including ones generated by waiting consumers. */
+    public long servedCount() {
+        return served.get();
+    }
+
+    /** How many times {@link #take()} found the pool empty and had to generate a key pair itself. */
+    public long waitCount() {
+        return waits.get();
+    }
+
+    public long totalWaitNanos() {
+        return waitNanos.get();
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /** Background generation attempts that threw. */
+    public long failureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyPairPool[depth=%d/%d, generated=%d, served=%d, waits=%d, wait=%.1f ms (max %.1f ms), failures=%d]",
+                depth(), highWatermark, generatedCount(), servedCount(), waitCount(),
+                totalWaitNanos() / 1e6, maxWaitNanos() / 1e6, failureCount());
+    }
+
+    /** Stops the generator threads; key pairs still in the pool are discarded. */
+    @Override
+    public void close() {
+        closed = true;
+        lock.lock();
+        try {
+            refillNeeded.signalAll();
+            keyAdded.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread generator : generators) {
+            generator.interrupt();
+        }
+        keys.clear();
+    }
+
+    private void requestRefill() {
+        lock.lock();
+        try {
+            if (!refilling) {
+                refilling = true;
+                refillNeeded.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void generate() {
+        while (!closed) {
+            lock.lock();
+            try {
+                while (!refilling && !closed) {
+                    refillNeeded.await();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (closed) {
+                return;
+            }
+
+            KeyPair keyPair;
+            try {
+                keyPair = factory.generate();
+            } catch (GeneralSecurityException | RuntimeException e) {
+                failures.incrementAndGet();
+                // Keep a persistently failing factory from spinning a core
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                continue;
+            }
+
+            lock.lock();
+            try {
+                // Several generators may finish together; anything beyond the high watermark is dropped
+                if (keys.offer(keyPair)) {
+                    generated.incrementAndGet();
+                    keyAdded.signalAll();
+                }
+                if (keys.size() >= highWatermark) {
+                    refilling = false;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Signs a batch of messages with a single private-key operation by signing the root of a SHA-256
+ * Merkle tree over them. Each message gets an {@link InclusionProof} of about {@code 32 * log2(N)} bytes
+ * that links it to the signed root.
+ *
+ * <p>Leaves are {@code SHA-256(0x00 || message)} and inner nodes are {@code SHA-256(0x01 || left || right)}.
+ * The distinct prefixes stop an inner node from being passed off as a leaf. A node without a sibling
+ * is carried up to the next level unchanged, not paired with itself, so a batch cannot be
+ * extended with duplicate messages without changing the root. The signature covers
+ * {@code "merkle-batch-v1" || root || leaf count}. The fixed context prefix keeps a batch signature
+ * from being confused with a signature the same key made over arbitrary 36-byte data.
+ */
+public final class MerkleBatchSigner {
+
+    private static final int HASH_LENGTH = 32;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final byte[] SIGNATURE_CONTEXT = "merkle-batch-v1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private MerkleBatchSigner() {
+    }
+
+    /**
+     * Builds the Merkle tree over {@code messages} and signs its root with the default algorithm for the key.
+     *
+     * @throws GeneralSecurityException if signing fails.
+     */
+    public static SignedBatch sign(List<byte[]> messages, PrivateKey privateKey) throws GeneralSecurityException {
+        return sign(messages, privateKey, SignatureAlgorithm.forKey(privateKey));
+    }
+
+    /**
+     * Builds the Merkle tree over {@code messages} and signs its root with {@code algorithm}.
+     *
+     * @throws GeneralSecurityException if signing fails.
+     */
+    public static SignedBatch sign(List<byte[]> messages, PrivateKey privateKey, SignatureAlgorithm algorithm)
+            throws GeneralSecurityException {
+        if (messages.isEmpty()) {
+            throw new IllegalArgumentException("Cannot sign an empty batch");
+        }
+        List<byte[][]> levels = new ArrayList<>();
+        // Leaf hashing dominates for large batches and is independent per message
+        byte[][] leaves = new byte[messages.size()][];
+        IntStream.range(0, leaves.length).parallel().forEach(i -> leaves[i] = leafHash(messages.get(i)));
+        levels.add(leaves);
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = 2 * i;
+                parent[i] = left + 1 < level.length ? nodeHash(level[left], level[left + 1]) : level[left];
+            }
+            levels.add(parent);
+            level = parent;
+        }
+        byte[] root = level[0];
+        byte[] rootSignature = algorithm.sign(signedData(root, messages.size()), privateKey);
+        return new SignedBatch(levels, rootSignature);
+    }
+
+    /**
+     * Checks that {@code message} is in a batch whose root was signed with {@code rootSignature}.
+     *
+     * @throws GeneralSecurityException if the key cannot be used for verification.
+     */
+    public static boolean verify(byte[] message, InclusionProof proof, byte[] rootSignature, PublicKey publicKey)
+            throws GeneralSecurityException {
+        byte[] root = proof.root(leafHash(message));
+        return root != null
+                && SignatureAlgorithm.verifyTagged(signedData(root, proof.leafCount), rootSignature, publicKey);
+    }
+
+    private static byte[] signedData(byte[] root, int leafCount) {
+        return ByteBuffer.allocate(SIGNATURE_CONTEXT.length + HASH_LENGTH + 4)
+                .put(SIGNATURE_CONTEXT).put(root).putInt(leafCount).array();
+    }
+
+    private static byte[] leafHash(byte[] message) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(LEAF_PREFIX);
+        return digest.digest(message);
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = DIGESTS.get();
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    /**
+     * A signed batch: the tree levels (kept to produce proofs) and the signature over the root.
+     */
+    public static final class SignedBatch {
+        private final List<byte[][]> levels;
+        private final byte[] rootSignature;
+
+        private SignedBatch(List<byte[][]> levels, byte[] rootSignature) {
+            this.levels = levels;
+            this.rootSignature = rootSignature;
+        }
+
+        public int size() {
+            return levels.get(0).length;
+        }
+
+        public byte[] root() {
+            return levels.get(levels.size() - 1)[0].clone();
+        }
+
+        public byte[] rootSignature() {
+            return rootSignature.clone();
+        }
+
+        /** The inclusion proof for the message at {@code index} in the signed list. */
+        public InclusionProof proof(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index " + index + " out of batch of " + size());
+            }
+            List<byte[]> siblings = new ArrayList<>();
+            int position = index;
+            for (int depth = 0; depth < levels.size() - 1; depth++) {
+                byte[][] level = levels.get(depth);
+                int sibling = position ^ 1;
+                if (sibling < level.length) {
+                    siblings.add(level[sibling]);
+                }
+                position >>>= 1;
+            }
+            return new InclusionProof(index, size(), siblings.toArray(new byte[0][]));
+        }
+    }
+
+    /**
+     * The sibling hashes on the path from one leaf to the root, bottom-up.
+     */
+    public static final class InclusionProof {
+        private final int leafIndex;
+        private final int leafCount;
+        private final byte[][] siblings;
+
+        private InclusionProof(int leafIndex, int leafCount, byte[][] siblings) {
+            this.leafIndex = leafIndex;
+            this.leafCount = leafCount;
+            this.siblings = siblings;
+        }
+
+        public int leafIndex() {
+            return leafIndex;
+        }
+
+        public int leafCount() {
+            return leafCount;
+        }
+
+        /** Compact encoding: leaf index (4) | leaf count (4) | sibling hashes (32 each). */
+        public byte[] encode() {
+            ByteBuffer out = ByteBuffer.allocate(8 + siblings.length * HASH_LENGTH);
+            out.putInt(leafIndex).putInt(leafCount);
+            for (byte[] sibling : siblings) {
+                out.put(sibling);
+            }
+            return out.array();
+        }
+
+        /**
+         * @throws IllegalArgumentException if {@code encoded} is not a well-formed proof.
+         */
+        public static InclusionProof decode(byte[] encoded) {
+            if (encoded.length < 8 || (encoded.length - 8) % HASH_LENGTH != 0) {
+                throw new IllegalArgumentException("Malformed inclusion proof of " + encoded.length + " bytes");
+            }
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            int leafIndex = in.getInt();
+            int leafCount = in.getInt();
+            if (leafCount <= 0 || leafIndex < 0 || leafIndex >= leafCount) {
+                throw new IllegalArgumentException("Leaf " + leafIndex + " out of " + leafCount);
+            }
+            byte[][] siblings = new byte[(encoded.length - 8) / HASH_LENGTH][];
+            for (int i = 0; i < siblings.length; i++) {
+                siblings[i] = Arrays.copyOfRange(encoded, 8 + i * HASH_LENGTH, 8 + (i + 1) * HASH_LENGTH);
+            }
+            return new InclusionProof(leafIndex, leafCount, siblings);
+        }
+
+        // Recomputes the root from a leaf hash; null if the proof does not fit the tree shape
+        private byte[] root(byte[] leaf) {
+            byte[] hash = leaf;
+            int position = leafIndex;
+            int width = leafCount;
+            int used = 0;
+            while (width > 1) {
+                int sibling = position ^ 1;
+                if (sibling < width) {
+                    if (used == siblings.length) {
+                        return null;
+                    }
+                    byte[] other = siblings[used++];
+                    hash = (position & 1) == 0 ? nodeHash(hash, other) : nodeHash(other, hash);
+                }
+                position >>>= 1;
+                width = (width + 1) / 2;
+            }
+            return used == siblings.length ? hash : null;
+        }
+    }
+}
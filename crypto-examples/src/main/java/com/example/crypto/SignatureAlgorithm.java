@@ -0,0 +1,218 @@
+package com.example.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+/**
+ * Signature algorithms available in the JDK, with key generation, signing and verification.
+ *
+ * <p>Signatures produced here are tagged: a one-byte algorithm id followed by the raw signature.
+ * A verifier can therefore accept signatures from a mixed fleet of signers and dispatch with
+ * {@link #verifyTagged}. The ids are part of the wire format and must never be reused.
+ *
+ * <p>Tagging changed the wire format: plain SHA256withRSA signatures issued before it are rejected by
+ * {@link #verify} and {@link #verifyTagged}. Use {@link #verifyTaggedOrLegacy} where such signatures
+ * still have to be accepted.
+ *
+ * <p>Each algorithm keeps one {@link Signature} engine per thread, so repeated calls do not pay for
+ * {@code Signature.getInstance}.
+ */
+public enum SignatureAlgorithm {
+
+    /** PKCS#1 v1.5 with SHA-256 and 2048-bit keys; the scheme of untagged legacy signatures. */
+    RSA_PKCS1((byte) 1, "SHA256withRSA", "RSA",
+            new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4), null),
+
+    /** RSA-PSS with SHA-256, MGF1-SHA-256 and a 32-byte salt, over ordinary 2048-bit RSA keys. */
+    RSA_PSS((byte) 2, "RSASSA-PSS", "RSA",
+            new RSAKeyGenParameterSpec(2048, RSAKeyGenParameterSpec.F4),
+            new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, PSSParameterSpec.TRAILER_FIELD_BC)),
+
+    /** ECDSA over NIST P-256 with SHA-256; DER-encoded signatures of about 71 bytes. */
+    ECDSA_P256((byte) 3, "SHA256withECDSA", "EC", new ECGenParameterSpec("secp256r1"), null),
+
+    /** Ed25519 (requires Java 15 or later); 64-byte signatures and the fastest signing here. */
+    ED25519((byte) 4, "Ed25519", "Ed25519", null, null);
+
+    private final byte id;
+    private final String signatureName;
+    private final String keyAlgorithm;
+    private final AlgorithmParameterSpec keyParameters;
+    private final AlgorithmParameterSpec signatureParameters;
+    private final ThreadLocal<Signature> engines = ThreadLocal.withInitial(this::newEngine);
+
+    SignatureAlgorithm(byte id, String signatureName, String keyAlgorithm,
+                       AlgorithmParameterSpec keyParameters, AlgorithmParameterSpec signatureParameters) {
+        this.id = id;
+        this.signatureName = signatureName;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyParameters = keyParameters;
+        this.signatureParameters = signatureParameters;
+    }
+
+    /** The tag byte that prefixes this algorithm's signatures. */
+    public byte id() {
+        return id;
+    }
+
+    /** The JCA key algorithm name, e.g. "RSA" or "EC". */
+    public String keyAlgorithm() {
+        return keyAlgorithm;
+    }
+
+    /** Whether the running JDK provides this algorithm. */
+    public boolean isAvailable() {
+        try {
+            Signature.getInstance(signatureName);
+            KeyPairGenerator.getInstance(keyAlgorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Generates a key pair suited to this algorithm.
+     *
+     * @throws GeneralSecurityException if the algorithm is not available.
+     */
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+        if (keyParameters != null) {
+            generator.initialize(keyParameters);
+        }
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * Signs {@code data} and returns the tagged signature: algorithm id followed by the raw signature.
+     *
+     * @throws GeneralSecurityException if the key does not fit this algorithm or signing fails.
+     */
+    public byte[] sign(byte[] data, PrivateKey privateKey) throws GeneralSecurityException {
+        Signature signature = engines.get();
+        signature.initSign(privateKey);
+        signature.update(data);
+        byte[] raw = signature.sign();
+        byte[] tagged = new byte[raw.length + 1];
+        tagged[0] = id;
+        System.arraycopy(raw, 0, tagged, 1, raw.length);
+        return tagged;
+    }
+
+    /**
+     * Verifies a tagged signature produced by this algorithm.
+     *
+     * @return True if the signature is valid; false if it is wrong, malformed or tagged with another algorithm.
+     * @throws GeneralSecurityException if the key does not fit this algorithm.
+     */
+    public boolean verify(byte[] data, byte[] taggedSignature, PublicKey publicKey) throws GeneralSecurityException {
+        if (taggedSignature.length < 2 || taggedSignature[0] != id) {
+            return false;
+        }
+        return verifyRaw(data, taggedSignature, 1, taggedSignature.length - 1, publicKey);
+    }
+
+    /**
+     * Verifies a tagged signature with whichever algorithm its tag names.
+     *
+     * @return True if the signature is valid; false if it is wrong, malformed or has an unknown tag.
+     * @throws GeneralSecurityException if the key does not fit the tagged algorithm.
+     */
+    public static boolean verifyTagged(byte[] data, byte[] taggedSignature, PublicKey publicKey)
+            throws GeneralSecurityException {
+        if (taggedSignature.length == 0) {
+            return false;
+        }
+        SignatureAlgorithm algorithm = fromId(taggedSignature[0]);
+        return algorithm != null && algorithm.verify(data, taggedSignature, publicKey);
+    }
+
+    /**
+     * Like {@link #verifyTagged}, but also accepts untagged SHA256withRSA signatures made before signatures
+     * were tagged. For an RSA key an untagged signature is exactly as long as the modulus and a tagged one
+     * is a byte longer, so the two cannot be confused.
+     *
+     * @return True if the signature is valid; false if it is wrong, malformed or has an unknown tag.
+     * @throws GeneralSecurityException if the key does not fit the signature's algorithm.
+     */
+    public static boolean verifyTaggedOrLegacy(byte[] data, byte[] signature, PublicKey publicKey)
+            throws GeneralSecurityException {
+        if ("RSA".equals(publicKey.getAlgorithm()) && publicKey instanceof RSAPublicKey
+                && signature.length == (((RSAPublicKey) publicKey).getModulus().bitLength() + 7) / 8) {
+            return RSA_PKCS1.verifyRaw(data, signature, 0, signature.length, publicKey);
+        }
+        return verifyTagged(data, signature, publicKey);
+    }
+
+    /** The algorithm with the given tag, or null if the tag is unknown. */
+    public static SignatureAlgorithm fromId(byte id) {
+        for (SignatureAlgorithm algorithm : values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The default algorithm for a key: PKCS#1 v1.5 for RSA keys (the same scheme as legacy untagged signatures),
+     * ECDSA P-256 for EC keys and Ed25519 for EdDSA keys.
+     *
+     * @throws IllegalArgumentException if no algorithm here uses keys of that type.
+     */
+    public static SignatureAlgorithm forKey(Key key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return RSA_PKCS1;
+            case "RSASSA-PSS":
+                return RSA_PSS;
+            case "EC":
+                return ECDSA_P256;
+            case "Ed25519":
+            case "EdDSA":
+                return ED25519;
+            default:
+                throw new IllegalArgumentException("No signature algorithm for " + key.getAlgorithm() + " keys");
+        }
+    }
+
+    private boolean verifyRaw(byte[] data, byte[] signatureBytes, int offset, int length, PublicKey publicKey)
+            throws GeneralSecurityException {
+        Signature signature = engines.get();
+        signature.initVerify(publicKey);
+        signature.update(data);
+        try {
+            return signature.verify(signatureBytes, offset, length);
+        } catch (SignatureException e) {
+            // A signature of the wrong length or encoding is simply invalid
+            return false;
+        }
+    }
+
+    private Signature newEngine() {
+        try {
+            Signature signature = Signature.getInstance(signatureName);
+            if (signatureParameters != null) {
+                signature.setParameter(signatureParameters);
+            }
+            return signature;
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            throw new IllegalStateException(signatureName + " is not available", e);
+        }
+    }
+}
@@ -1,11 +1,13 @@
 package com.example.crypto;
 
-import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.GCMParameterSpec;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
 /**
@@ -15,9 +17,8 @@ import java.util.Base64;
  */
 public class SymmetricEncryptionExample {
 
-    private static final String ALGORITHM = "AES/GCM/NoPadding";
-    private static final int GCM_IV_LENGTH = 12; // 96 bits
-    private static final int GCM_TAG_LENGTH = 128; // bits
+    // The last encryptor each thread used, so repeated calls with the same key reuse its nonce counter
+    private static final ThreadLocal<AesGcmEncryptor> ENCRYPTORS = new ThreadLocal<>();
 
     /**
      * Encrypts a plaintext using a secret key.
@@ -28,21 +29,10 @@ public class SymmetricEncryptionExample {
      * @throws Exception if encryption fails.
      */
     public static String encrypt(String plainText, SecretKey secretKey) throws Exception {
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(iv);
-
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
-
-        byte[] cipherText = cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-
-        // Prepend IV to ciphertext
-        byte[] encryptedData = new byte[iv.length + cipherText.length];
-        System.arraycopy(iv, 0, encryptedData, 0, iv.length);
-        System.arraycopy(cipherText, 0, encryptedData, iv.length, cipherText.length);
-
+        byte[] plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        // IV, ciphertext and tag are written straight into one array
+        byte[] encryptedData = new byte[AesGcmEncryptor.ciphertextLength(plainBytes.length)];
+        encryptorFor(secretKey).encrypt(plainBytes, 0, plainBytes.length, encryptedData, 0);
         return Base64.getEncoder().encodeToString(encryptedData);
     }
 
@@ -56,21 +46,19 @@ public class SymmetricEncryptionExample {
      */
     public static String decrypt(String cipherTextBase64, SecretKey secretKey) throws Exception {
         byte[] encryptedData = Base64.getDecoder().decode(cipherTextBase64);
+        // The IV is read in place from the beginning of the encrypted data
+        byte[] decryptedText = new byte[Math.max(0, AesGcmEncryptor.plaintextLength(encryptedData.length))];
+        int length = encryptorFor(secretKey).decrypt(encryptedData, 0, encryptedData.length, decryptedText, 0);
+        return new String(decryptedText, 0, length, StandardCharsets.UTF_8);
+    }
 
-        // Extract IV from the beginning of the encrypted data
-        byte[] iv = new byte[GCM_IV_LENGTH];
-        System.arraycopy(encryptedData, 0, iv, 0, iv.length);
-
-        byte[] cipherText = new byte[encryptedData.length - iv.length];
-        System.arraycopy(encryptedData, iv.length, cipherText, 0, cipherText.length);
-
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
-
-        byte[] decryptedText = cipher.doFinal(cipherText);
-
-        return new String(decryptedText, StandardCharsets.UTF_8);
+    private static AesGcmEncryptor encryptorFor(SecretKey secretKey) {
+        AesGcmEncryptor encryptor = ENCRYPTORS.get();
+        if (encryptor == null || !encryptor.getKey().equals(secretKey)) {
+            encryptor = new AesGcmEncryptor(secretKey);
+            ENCRYPTORS.set(encryptor);
+        }
+        return encryptor;
     }
 
     public static void main(String[] args) throws Exception {
@@ -93,5 +81,45 @@ public class SymmetricEncryptionExample {
 
         // Verification
         System.out.println("\nVerification Successful: " + originalMessage.equals(decryptedMessage));
+
+        // 5. Reuse one encryptor and caller-owned buffers for many messages
+        AesGcmEncryptor encryptor = new AesGcmEncryptor(secretKey);
+        byte[] plainBytes = originalMessage.getBytes(StandardCharsets.UTF_8);
+        byte[] encrypted = new byte[AesGcmEncryptor.ciphertextLength(plainBytes.length)];
+        byte[] decrypted = new byte[plainBytes.length];
+        boolean allMatch = true;
+        for (int i = 0; i < 1000; i++) {
+            int encryptedLength = encryptor.encrypt(plainBytes, 0, plainBytes.length, encrypted, 0);
+            int decryptedLength = encryptor.decrypt(encrypted, 0, encryptedLength, decrypted, 0);
+            allMatch &= new String(decrypted, 0, decryptedLength, StandardCharsets.UTF_8).equals(originalMessage);
+        }
+        System.out.println("Reused Encryptor Round Trips Successful: " + allMatch);
+
+        // 6. Encrypt a large file in parallel chunks through memory-mapped I/O
+        Path plainFile = Files.createTempFile("symmetric-plain", ".bin");
+        Path encryptedFile = Files.createTempFile("symmetric-encrypted", ".agcm");
+        Path decryptedFile = Files.createTempFile("symmetric-decrypted", ".bin");
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new SecureRandom().nextBytes(block);
+            for (int i = 0; i < 64; i++) {
+                Files.write(plainFile, block, StandardOpenOption.APPEND);
+            }
+            AesGcmFileEncryptor fileEncryptor = new AesGcmFileEncryptor(secretKey);
+            long start = System.nanoTime();
+            long encryptedSize = fileEncryptor.encrypt(plainFile, encryptedFile);
+            long encryptNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            fileEncryptor.decrypt(encryptedFile, decryptedFile);
+            long decryptNanos = System.nanoTime() - start;
+            System.out.printf("File Encrypted: %d -> %d bytes (%.0f MB/s encrypt, %.0f MB/s decrypt)%n",
+                    Files.size(plainFile), encryptedSize,
+                    Files.size(plainFile) / 1e6 / (encryptNanos / 1e9), Files.size(plainFile) / 1e6 / (decryptNanos / 1e9));
+            System.out.println("File Round Trip Successful: " + Arrays.equals(Files.readAllBytes(plainFile), Files.readAllBytes(decryptedFile)));
+        } finally {
+            Files.deleteIfExists(plainFile);
+            Files.deleteIfExists(encryptedFile);
+            Files.deleteIfExists(decryptedFile);
+        }
     }
 } 
\ No newline at end of file